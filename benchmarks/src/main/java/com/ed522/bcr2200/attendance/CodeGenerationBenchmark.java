@@ -0,0 +1,43 @@
+package com.ed522.bcr2200.attendance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating the codes for one rotation, from the rotator's
+ * {@link java.security.SecureRandom}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodeGenerationBenchmark {
+
+    private static final int CODES_SHOWN = 3; // as on the code view
+
+    private CodeRotator rotator;
+
+    @Setup
+    public void setUp() {
+        // generating needs no stream, nothing is registered
+        this.rotator = new CodeRotator(null, CODES_SHOWN, 1);
+    }
+
+    @Benchmark
+    public long[] generateCodes() {
+        return this.rotator.generateCodes();
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.ed522.bcr2200.attendance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Waking one task of many in the {@link TaskScheduler} that drives the code
+ * view, and waiting for it to run. Every task is queued with a deadline an
+ * hour away, so each wake reorders a full queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaskSchedulerBenchmark {
+
+    private static final long FAR_AWAY = 3_600_000; // ms
+
+    @Param({"3", "100", "10000"})
+    public int tasks;
+
+    private final AtomicLong runs = new AtomicLong();
+    private TaskScheduler scheduler;
+    private TaskScheduler.Handle[] handles;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        this.scheduler = new TaskScheduler("Benchmark");
+        this.handles = new TaskScheduler.Handle[this.tasks];
+        long far = System.currentTimeMillis() + FAR_AWAY;
+        for (int i = 0; i < this.tasks; i++) {
+            this.handles[i] = this.scheduler.schedule(now -> {
+                this.runs.incrementAndGet();
+                return now + FAR_AWAY;
+            }, far);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.scheduler.shutdown();
+    }
+
+    @Benchmark
+    public long wakeAndRun() {
+        long target = this.runs.get() + 1;
+        this.handles[this.next].wakeNow();
+        this.next = (this.next + 1) % this.tasks;
+        while (this.runs.get() < target) Thread.onSpinWait();
+        return target;
+    }
+
+}
@@ -0,0 +1,321 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An attendance server running in the same JVM, for benchmarks and load
+ * tests.
+ * <br /><br />
+ * It answers discovery probes by connecting back to the advertised host and
+ * port, completes the handshake (in binary if the client offers it and it
+ * is {@link #setBinaryEnabled(boolean) enabled}), and acknowledges every
+ * heartbeat and code, with codes valid for {@link #setValiditySeconds(long)}
+ * after their generation time. Messages are read and written with the
+ * client's own streams. Clients that ask for a lease are granted one, with a
+ * fresh key, if {@link #setLeaseSeconds(long) enabled}.
+ * <br /><br />
+ * A poor network can be imitated: each acknowledgement can be
+ * {@link #setLatency(long, long) delayed}, {@link #setLossRate(double) lost}
+ * or {@link #setReorderRate(double) sent after the next one}, and
+ * connections can be {@link #setDisconnectRate(double) dropped} at random or
+ * {@link #dropConnections() all at once}. Faults apply to the handshake as
+ * well as to later messages, and can be changed while clients are connected.
+ */
+public final class FakeAttendanceServer implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger("FakeAttendanceServer");
+    private static final int PORT = 5789;
+    private static final long CLOSE_TIMEOUT = 5_000; // ms
+
+    private final int discoveryPort;
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    // clients being served, so repeated probes from one client open one connection
+    private final Set<String> serving = ConcurrentHashMap.newKeySet();
+    // messages carrying codes that arrived in each epoch second, to see how evenly clients spread them
+    private final ConcurrentHashMap<Long, LongAdder> codeMessages = new ConcurrentHashMap<>();
+
+    private volatile boolean binaryEnabled = true;
+    private volatile boolean idsEchoed = true;
+    private volatile long validitySeconds = 30;
+    private volatile long leaseSeconds = 0;
+    private volatile long latency = 0; // ms
+    private volatile long jitter = 0; // ms
+    private volatile double lossRate = 0;
+    private volatile double reorderRate = 0;
+    private volatile double disconnectRate = 0;
+    private DatagramSocket discovery;
+
+    public FakeAttendanceServer() {
+        this(PORT);
+    }
+
+    /**
+     * @param discoveryPort the UDP port to listen for probes on
+     */
+    public FakeAttendanceServer(int discoveryPort) {
+        this.discoveryPort = discoveryPort;
+    }
+
+    public void setBinaryEnabled(boolean binaryEnabled) {
+        this.binaryEnabled = binaryEnabled;
+    }
+
+    /**
+     * @param idsEchoed whether acknowledgements carry the request's id, as older servers' do not
+     */
+    public void setIdsEchoed(boolean idsEchoed) {
+        this.idsEchoed = idsEchoed;
+    }
+
+    public void setValiditySeconds(long validitySeconds) {
+        this.validitySeconds = validitySeconds;
+    }
+
+    /**
+     * @param leaseSeconds how long the leases granted in handshakes last, or 0 to grant none
+     */
+    public void setLeaseSeconds(long leaseSeconds) {
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    /**
+     * Delay every acknowledgement. A delayed acknowledgement holds up the
+     * messages behind it, as on a slow link.
+     * @param latencyMillis the least delay
+     * @param jitterMillis up to how much more to add at random
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latency = latencyMillis;
+        this.jitter = jitterMillis;
+    }
+
+    /**
+     * @param lossRate the chance, from 0 to 1, that a message goes unacknowledged
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * @param reorderRate the chance, from 0 to 1, that an acknowledgement is held back and sent after the next one
+     */
+    public void setReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
+    }
+
+    /**
+     * @param disconnectRate the chance, from 0 to 1, that the connection is dropped instead of answering a message
+     */
+    public void setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+    }
+
+    /**
+     * @return how many messages carrying codes arrived in each second, by epoch second, lost ones included
+     */
+    public SortedMap<Long, Long> getCodeMessagesPerSecond() {
+        SortedMap<Long, Long> counts = new TreeMap<>();
+        this.codeMessages.forEach((second, count) -> counts.put(second, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Start listening for probes.
+     * @throws IOException if the discovery port could not be bound
+     */
+    public void start() throws IOException {
+        this.discovery = new DatagramSocket(this.discoveryPort);
+        this.threads.submit(this::discoveryLoop);
+    }
+
+    private void discoveryLoop() {
+        byte[] buffer = new byte[2048];
+        while (!this.discovery.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                this.discovery.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+
+            JsonObject probe;
+            try {
+                probe = JsonParser.parseString(new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8)).getAsJsonObject();
+            } catch (RuntimeException e) {
+                continue;
+            }
+            if (probe.get("type") == null || !"discovery".equals(probe.get("type").getAsString())) continue;
+
+            String host = probe.get("host") != null ? probe.get("host").getAsString() : packet.getAddress().getHostAddress();
+            int port = probe.get("port") != null ? probe.get("port").getAsInt() : PORT;
+            String client = host + " " + port;
+            if (this.serving.add(client)) {
+                this.threads.submit(() -> this.serve(client, host, port));
+            }
+        }
+    }
+
+    private void serve(String client, String host, int port) {
+        try (Socket socket = new Socket(host, port)) {
+            this.connections.add(socket);
+            try {
+                this.converse(socket);
+            } finally {
+                this.connections.remove(socket);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Connection to " + host + " ended: " + e.getMessage());
+        } finally {
+            this.serving.remove(client);
+        }
+    }
+
+    private void converse(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        Transport transport = new SocketTransport(socket);
+        JsonMessageStream json = new JsonMessageStream(transport);
+
+        JsonObject connect = json.read(0);
+        if (connect == null || connect.get("type") == null || !"connect".equals(connect.get("type").getAsString())) return;
+        if (chance(this.disconnectRate)) return;
+        if (chance(this.lossRate)) {
+            // leave the client waiting until it gives up and hangs up
+            json.read(0);
+            return;
+        }
+        this.delay();
+
+        JsonObject ack = new JsonObject();
+        ack.addProperty("type", "acknowledge");
+        ack.addProperty("targeting", "connect");
+        boolean binary = this.binaryEnabled && offersBinary(connect);
+        if (binary) ack.addProperty("encoding", "binary");
+        long leaseSeconds = this.leaseSeconds;
+        if (leaseSeconds > 0 && connect.get("lease") != null && connect.get("lease").getAsBoolean()) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            long now = System.currentTimeMillis() / 1000;
+            ack.add("lease", new CodeLease(key, this.validitySeconds, now + leaseSeconds).toJson());
+        }
+        json.write(ack);
+
+        MessageStream stream = binary
+                ? new BinaryMessageStream(transport, connect.get("version").getAsInt())
+                : json;
+        Message request = new Message();
+        Message reply = new Message();
+        Message held = new Message();
+        boolean holding = false;
+        while (stream.read(request, 0)) {
+            if (request.codeCount > 0) {
+                this.codeMessages.computeIfAbsent(System.currentTimeMillis() / 1000, x -> new LongAdder()).increment();
+            }
+            if (chance(this.disconnectRate)) return;
+            if (chance(this.lossRate)) continue;
+            this.delay();
+
+            this.acknowledge(request, reply.clear());
+            if (!holding && chance(this.reorderRate)) {
+                Message swap = held;
+                held = reply;
+                reply = swap;
+                holding = true;
+                continue;
+            }
+            stream.write(reply);
+            if (holding) {
+                stream.write(held);
+                holding = false;
+            }
+        }
+    }
+
+    private void delay() throws InterruptedIOException {
+        long millis = this.latency;
+        long extra = this.jitter;
+        if (extra > 0) millis += ThreadLocalRandom.current().nextLong(extra + 1);
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Server closed");
+        }
+    }
+
+    private static boolean chance(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private void acknowledge(Message request, Message reply) {
+        reply.type = Message.Type.ACKNOWLEDGE;
+        reply.targeting = request.type;
+        if (this.idsEchoed) reply.id = request.id;
+        reply.counter = request.counter;
+        if (request.codeCount > 0) reply.validTo = request.generationTimes[0] + this.validitySeconds;
+    }
+
+    private static boolean offersBinary(JsonObject connect) {
+        if (connect.get("version") == null || connect.get("encodings") == null) return false;
+        for (JsonElement encoding : connect.get("encodings").getAsJsonArray()) {
+            if ("binary".equals(encoding.getAsString())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop every open connection, as if the server restarted. Clients
+     * reconnect through discovery as usual.
+     */
+    public void dropConnections() {
+        for (Socket socket : this.connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * Stop listening and drop every connection, returning once the discovery
+     * port is free again.
+     */
+    @Override
+    public void close() {
+        if (this.discovery != null) this.discovery.close();
+        this.dropConnections();
+        this.threads.shutdownNow();
+        try {
+            // a socket closed under a blocked receive is only released once that thread leaves
+            if (!this.threads.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOGGER.log(Level.WARNING, "Fake server threads did not stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.ed522.bcr2200.attendance.CodeDisplay;
+import com.ed522.bcr2200.attendance.CodeRotator;
+import com.ed522.bcr2200.attendance.CodeSink;
+import com.ed522.bcr2200.attendance.TaskScheduler;
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.ConnectionState;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs hundreds of endpoints against a {@link FakeAttendanceServer} in the
+ * same JVM, and reports how quickly codes rotate and connections recover.
+ * <br /><br />
+ * Each simulated display owns an {@link AttendanceEndpoint} kept connected
+ * on its own virtual thread, and a {@link CodeDisplay} like the real
+ * displays, sharing one {@link TaskScheduler}. Every endpoint listens on a
+ * port of its own.
+ * <br /><br />
+ * Run with, for example:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.ed522.bcr2200.attendance.io.LoadDriver \
+ *     --endpoints 300 --duration 120 --latency 20 --jitter 30 --loss 0.01 --drop-every 30
+ * </pre>
+ */
+public final class LoadDriver {
+
+    private static final Logger LOGGER = Logger.getLogger("LoadDriver");
+    // kept reachable, a logger that is collected forgets its level
+    private static final List<Logger> QUIETED = new ArrayList<>();
+    private static final long STOP_TIMEOUT = 10_000; // ms
+
+    /**
+     * One simulated display, timing what it would show.
+     */
+    private final class Display implements CodeSink {
+
+        private final AttendanceEndpoint endpoint;
+        private final long startedAt = System.nanoTime();
+        // listeners are dispatched one at a time, but not always on the same thread
+        private volatile boolean connectedOnce = false;
+        private volatile long lostAt = 0; // nanos
+        // epoch ms since the display has needed new codes
+        private volatile long waitingSince = Long.MIN_VALUE;
+
+        Display(AttendanceEndpoint endpoint) {
+            this.endpoint = endpoint;
+            // registered first, so the wait is timed from before the display asks for codes
+            endpoint.registerConnectionStateListener(this::connectionChanged);
+            new CodeDisplay(endpoint.getDefaultStream(), LoadDriver.this.scheduler, this)
+                    .setPrefetch(LoadDriver.this.prefetchWindow, LoadDriver.this.prefetchPhase);
+        }
+
+        @Override
+        public void show(String streamId, CodeRotator.Rotation rotation) {
+            long now = System.currentTimeMillis();
+            long since = this.waitingSince;
+            if (since != Long.MIN_VALUE) {
+                LoadDriver.this.rotationLatency.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, now - since)));
+            }
+            this.waitingSince = rotation.expiry().toEpochMilli();
+        }
+
+        @Override
+        public void connectionChanged(ConnectionState state) {
+            long now = System.nanoTime();
+            switch (state) {
+                case CONNECTED_GOOD -> {
+                    if (!this.connectedOnce) {
+                        LoadDriver.this.connectTime.record(now - this.startedAt);
+                        this.connectedOnce = true;
+                    } else if (this.lostAt != 0) {
+                        LoadDriver.this.reconnectTime.record(now - this.lostAt);
+                    }
+                    this.lostAt = 0;
+                    // the display throws its codes away and waits for fresh ones
+                    this.waitingSince = System.currentTimeMillis();
+                }
+                case CONNECTED_PROBLEM -> {}
+                case DISCONNECTED, SEARCHING_FOR_HOSTS, CONNECTING -> {
+                    if (this.connectedOnce && this.lostAt == 0) this.lostAt = now;
+                }
+            }
+        }
+
+    }
+
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram rotationLatency = new LatencyHistogram();
+    private final LatencyHistogram reconnectTime = new LatencyHistogram();
+    private final TaskScheduler scheduler = new TaskScheduler("LoadDriver");
+
+    private int endpoints = 200;
+    private long durationSeconds = 60;
+    private long validitySeconds = 10;
+    private long dropEverySeconds = 0;
+    private long latency = 0; // ms
+    private long jitter = 0; // ms
+    private double lossRate = 0;
+    private double reorderRate = 0;
+    private double disconnectRate = 0;
+    private long leaseSeconds = 0;
+    private long prefetchWindow = 0; // ms
+    private double prefetchPhase = CodeRotator.RANDOM_PHASE;
+    private boolean binaryEnabled = true;
+    private boolean idsEchoed = true;
+    private boolean verbose = false;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadDriver driver = new LoadDriver();
+        int index = 0;
+        while (index != -1) {
+            index = driver.parseArguments(args, index);
+        }
+        driver.run();
+    }
+
+    /**
+     * Parse one option, as {@code BaseApplication} does.
+     * @return the index of the next unparsed argument, or -1 at the end
+     */
+    private int parseArguments(String[] args, int index) {
+        if (index >= args.length) return -1;
+        String option = Objects.requireNonNull(args[index], "One of the args was null");
+        if (option.equals("--json")) {
+            this.binaryEnabled = false;
+            return index + 1;
+        }
+        if (option.equals("--no-ids")) {
+            this.idsEchoed = false;
+            return index + 1;
+        }
+        if (option.equals("--verbose")) {
+            this.verbose = true;
+            return index + 1;
+        }
+        if (index + 1 >= args.length) throw new IllegalArgumentException(option + " needs a value");
+        String value = args[index + 1];
+        switch (option) {
+            case "--endpoints" -> this.endpoints = Integer.parseInt(value);
+            case "--duration" -> this.durationSeconds = Long.parseLong(value);
+            case "--validity" -> this.validitySeconds = Long.parseLong(value);
+            case "--drop-every" -> this.dropEverySeconds = Long.parseLong(value);
+            case "--latency" -> this.latency = Long.parseLong(value);
+            case "--jitter" -> this.jitter = Long.parseLong(value);
+            case "--loss" -> this.lossRate = Double.parseDouble(value);
+            case "--reorder" -> this.reorderRate = Double.parseDouble(value);
+            case "--disconnect" -> this.disconnectRate = Double.parseDouble(value);
+            case "--lease" -> this.leaseSeconds = Long.parseLong(value);
+            case "--prefetch-window" -> this.prefetchWindow = Long.parseLong(value);
+            case "--prefetch-phase" -> this.prefetchPhase = value.equals("random")
+                    ? CodeRotator.RANDOM_PHASE : Double.parseDouble(value);
+            default -> throw new IllegalArgumentException("Unknown option " + option);
+        }
+        return index + 2;
+    }
+
+    private void run() throws IOException, InterruptedException {
+
+        if (!this.verbose) {
+            // hundreds of endpoints reconnecting would drown the report
+            for (String name : new String[] {"AttendanceEndpoint", "CodeRotator", "FakeAttendanceServer"}) {
+                Logger logger = Logger.getLogger(name);
+                logger.setLevel(Level.OFF);
+                QUIETED.add(logger);
+            }
+        }
+
+        List<Display> displays = new ArrayList<>(this.endpoints);
+        SortedMap<Long, Long> codeMessages;
+        ExecutorService communicators = Executors.newVirtualThreadPerTaskExecutor();
+        try (FakeAttendanceServer server = new FakeAttendanceServer()) {
+
+            server.setValiditySeconds(this.validitySeconds);
+            server.setBinaryEnabled(this.binaryEnabled);
+            server.setIdsEchoed(this.idsEchoed);
+            server.setLatency(this.latency, this.jitter);
+            server.setLossRate(this.lossRate);
+            server.setReorderRate(this.reorderRate);
+            server.setDisconnectRate(this.disconnectRate);
+            server.setLeaseSeconds(this.leaseSeconds);
+            server.start();
+
+            LOGGER.log(Level.INFO, "Starting " + this.endpoints + " endpoints for " + this.durationSeconds + "s");
+            for (int i = 0; i < this.endpoints; i++) {
+                AttendanceEndpoint endpoint = new AttendanceEndpoint();
+                endpoint.setHostCache(null);
+                endpoint.setCallbackPort(0);
+                endpoint.setBatchingEnabled(true);
+                endpoint.setBinaryEnabled(this.binaryEnabled);
+                endpoint.setLeaseEnabled(this.leaseSeconds > 0);
+                displays.add(new Display(endpoint));
+                communicators.submit(() -> {
+                    endpoint.keepConnected(0, new String[] {"127.0.0.1"});
+                    return null;
+                });
+            }
+
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.durationSeconds);
+            long dropEvery = TimeUnit.SECONDS.toNanos(this.dropEverySeconds);
+            long nextDrop = dropEvery > 0 ? System.nanoTime() + dropEvery : Long.MAX_VALUE;
+            while (true) {
+                long now = System.nanoTime();
+                if (now - end >= 0) break;
+                if (now - nextDrop >= 0) {
+                    LOGGER.log(Level.INFO, "Dropping every connection");
+                    server.dropConnections();
+                    nextDrop += dropEvery;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(end, nextDrop) - now);
+            }
+
+            communicators.shutdownNow();
+            if (!communicators.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOGGER.log(Level.WARNING, "Some endpoints did not stop");
+            }
+            codeMessages = server.getCodeMessagesPerSecond();
+
+        } finally {
+            communicators.shutdownNow();
+            this.scheduler.shutdown();
+        }
+
+        this.report(displays, codeMessages);
+
+    }
+
+    private void report(List<Display> displays, SortedMap<Long, Long> codeMessages) {
+
+        LatencyHistogram acknowledgement = new LatencyHistogram();
+        LatencyHistogram heartbeat = new LatencyHistogram();
+        long sent = 0, acknowledged = 0, failed = 0, retries = 0, disconnections = 0, connected = 0;
+        for (Display display : displays) {
+            EndpointMetrics metrics = display.endpoint.getMetrics();
+            acknowledgement.add(metrics.codeAcknowledgement);
+            heartbeat.add(metrics.heartbeatRoundTrip);
+            sent += metrics.getCodesSent();
+            acknowledged += metrics.getCodesAcknowledged();
+            failed += metrics.getCodesFailed();
+            retries += metrics.getRetries();
+            disconnections += metrics.getDisconnections();
+            if (display.connectedOnce) connected++;
+        }
+
+        System.out.printf(Locale.ROOT, "%d endpoints (%d connected) for %ds, %s, latency %d+%dms, loss %.3f, reorder %.3f, disconnect %.3f, lease %ds%n",
+                this.endpoints, connected, this.durationSeconds,
+                this.binaryEnabled ? "binary" : "json", this.latency, this.jitter,
+                this.lossRate, this.reorderRate, this.disconnectRate, this.leaseSeconds);
+        if (!this.idsEchoed) System.out.println("acknowledgements without request ids");
+        System.out.printf(Locale.ROOT, "prefetch window %dms, phase %s%n", this.prefetchWindow,
+                Double.isNaN(this.prefetchPhase) ? "random" : String.valueOf(this.prefetchPhase));
+        System.out.printf(Locale.ROOT, "%-22s %8s %9s %9s %9s %9s %9s%n", "(ms)", "count", "mean", "p50", "p90", "p99", "max");
+        printRow("connect", this.connectTime);
+        printRow("rotation", this.rotationLatency);
+        printRow("reconnect", this.reconnectTime);
+        printRow("code acknowledgement", acknowledgement);
+        printRow("heartbeat round trip", heartbeat);
+        System.out.printf(Locale.ROOT, "codes sent %d, acknowledged %d, failed %d, retries %d, disconnections %d%n",
+                sent, acknowledged, failed, retries, disconnections);
+
+        // the first rotation period is spent starting up, and the last second is cut short
+        if (!codeMessages.isEmpty() && codeMessages.lastKey() - codeMessages.firstKey() > this.validitySeconds + 1) {
+            long first = codeMessages.firstKey() + this.validitySeconds;
+            long last = codeMessages.lastKey() - 1;
+            long total = 0, peak = 0;
+            for (long second = first; second <= last; second++) {
+                long count = codeMessages.getOrDefault(second, 0L);
+                total += count;
+                peak = Math.max(peak, count);
+            }
+            double mean = (double) total / (last - first + 1);
+            System.out.printf(Locale.ROOT, "code messages per second after the first rotation: mean %.1f, peak %d (%.1fx mean)%n",
+                    mean, peak, mean == 0 ? 0 : peak / mean);
+        }
+
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot s = histogram.snapshot();
+        System.out.printf(Locale.ROOT, "%-22s %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                name, s.count(), s.meanMillis(), s.p50Millis(), s.p90Millis(), s.p99Millis(), s.maxMillis());
+    }
+
+}
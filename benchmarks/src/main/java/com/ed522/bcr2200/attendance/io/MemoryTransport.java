@@ -0,0 +1,74 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Transport} that needs no socket: reads replay the same bytes
+ * forever, and writes are either dropped or kept for inspection.
+ */
+final class MemoryTransport implements Transport {
+
+    private final byte[] incoming;
+    private final ByteArrayOutputStream captured;
+    private int readPosition = 0;
+    private long written = 0;
+
+    /**
+     * @param incoming the bytes to return from reads, over and over; empty for none
+     * @param capture whether to keep written bytes, see {@link #captured()}
+     */
+    MemoryTransport(byte[] incoming, boolean capture) {
+        this.incoming = incoming;
+        this.captured = capture ? new ByteArrayOutputStream() : null;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, int timeoutMillis) {
+        if (this.incoming.length == 0) return -1;
+        int count = 0;
+        while (dst.hasRemaining()) {
+            int chunk = Math.min(dst.remaining(), this.incoming.length - this.readPosition);
+            dst.put(this.incoming, this.readPosition, chunk);
+            this.readPosition = (this.readPosition + chunk) % this.incoming.length;
+            count += chunk;
+        }
+        return count;
+    }
+
+    @Override
+    public void write(ByteBuffer src) {
+        this.written += src.remaining();
+        if (this.captured != null) {
+            while (src.hasRemaining()) this.captured.write(src.get());
+        } else {
+            src.position(src.limit());
+        }
+    }
+
+    /**
+     * @return everything written so far, if capturing
+     */
+    byte[] captured() {
+        return this.captured.toByteArray();
+    }
+
+    long written() {
+        return this.written;
+    }
+
+    @Override
+    public InetAddress getRemoteAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {}
+
+}
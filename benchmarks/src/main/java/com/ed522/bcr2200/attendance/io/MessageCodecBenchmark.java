@@ -0,0 +1,124 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a three-code batch and decoding its acknowledgement, with the
+ * original {@link JsonObject} tree, the streaming JSON codec and the binary
+ * encoding. Streams run over {@link MemoryTransport}, so only the codec is
+ * measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private static final long GENERATION = 1_792_311_000L;
+    private static final String ACK_JSON =
+            "{\"type\":\"acknowledge\",\"targeting\":\"codes\",\"id\":42,\"valid_to\":" + (GENERATION + 30) + "}\n";
+
+    private final Message batch = new Message();
+    private final Message reply = new Message();
+
+    private JsonMessageStream jsonOut;
+    private JsonMessageStream jsonIn;
+    private BinaryMessageStream binaryOut;
+    private BinaryMessageStream binaryIn;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.batch.type = Message.Type.CODES;
+        this.batch.id = 42;
+        this.batch.stream = "room-1";
+        this.batch.addCode(123_456, GENERATION);
+        this.batch.addCode(654_321, GENERATION);
+        this.batch.addCode(111_111, GENERATION);
+
+        this.jsonOut = new JsonMessageStream(new MemoryTransport(new byte[0], false));
+        this.jsonIn = new JsonMessageStream(new MemoryTransport(ACK_JSON.getBytes(StandardCharsets.UTF_8), false));
+        this.binaryOut = new BinaryMessageStream(new MemoryTransport(new byte[0], false), 1);
+        this.binaryIn = new BinaryMessageStream(new MemoryTransport(binaryAck(), false), 1);
+    }
+
+    /**
+     * @return the acknowledgement to {@link #batch} as a binary frame
+     */
+    private static byte[] binaryAck() throws IOException {
+        MemoryTransport capture = new MemoryTransport(new byte[0], true);
+        Message ack = new Message();
+        ack.type = Message.Type.ACKNOWLEDGE;
+        ack.targeting = Message.Type.CODES;
+        ack.id = 42;
+        ack.validTo = GENERATION + 30;
+        new BinaryMessageStream(capture, 1).write(ack);
+        return capture.captured();
+    }
+
+    /** The encoding the endpoint used before the streaming codec. */
+    @Benchmark
+    public byte[] encodeJsonObject() {
+        JsonArray codes = new JsonArray(this.batch.codeCount);
+        for (int i = 0; i < this.batch.codeCount; i++) {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("code", this.batch.codes[i]);
+            entry.addProperty("generation_time", this.batch.generationTimes[i]);
+            codes.add(entry);
+        }
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "codes");
+        message.addProperty("id", this.batch.id);
+        message.add("codes", codes);
+        message.addProperty("stream", this.batch.stream);
+        return message.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** The decoding the endpoint used before the streaming codec. */
+    @Benchmark
+    public long decodeJsonParser() {
+        JsonObject ack = JsonParser.parseString(ACK_JSON).getAsJsonObject();
+        if (!"acknowledge".equals(ack.get("type").getAsString())) throw new IllegalStateException();
+        return ack.get("valid_to").getAsLong();
+    }
+
+    @Benchmark
+    public void encodeStreaming() throws IOException {
+        this.jsonOut.write(this.batch);
+    }
+
+    @Benchmark
+    public long decodeStreaming() throws IOException {
+        this.jsonIn.read(this.reply, 0);
+        return this.reply.validTo;
+    }
+
+    @Benchmark
+    public void encodeBinary() throws IOException {
+        this.binaryOut.write(this.batch);
+    }
+
+    @Benchmark
+    public long decodeBinary() throws IOException {
+        this.binaryIn.read(this.reply, 0);
+        return this.reply.validTo;
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.VerificationCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A code sent through {@link AttendanceEndpoint#communicate()} and
+ * acknowledged by a {@link FakeAttendanceServer} in the same JVM, over
+ * loopback TCP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    private static final long CONNECT_TIMEOUT = 10_000; // ms
+    private static final long ACK_TIMEOUT = 5_000; // ms
+
+    @Param({"true", "false"})
+    public boolean binary;
+
+    private FakeAttendanceServer server;
+    private AttendanceEndpoint endpoint;
+    private Thread communicator;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.server = new FakeAttendanceServer();
+        this.server.start();
+
+        this.endpoint = new AttendanceEndpoint();
+        this.endpoint.setHostCache(null);
+        this.endpoint.setBinaryEnabled(this.binary);
+        this.communicator = Thread.ofPlatform().daemon().start(() -> {
+            try {
+                this.endpoint.keepConnected(0, new String[] {"127.0.0.1"});
+            } catch (InterruptedException e) {
+                // benchmark over
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (this.endpoint.getState() != AttendanceEndpoint.ConnectionState.CONNECTED_GOOD) {
+            if (System.currentTimeMillis() > deadline) throw new IllegalStateException("Fake server never connected");
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        this.communicator.interrupt();
+        this.communicator.join();
+        this.server.close();
+    }
+
+    @Benchmark
+    public Instant sendAndAcknowledge() throws InterruptedException {
+        Instant expiry = this.endpoint.sendCodeAndWait(new VerificationCode(123_456, Instant.now()), ACK_TIMEOUT);
+        if (expiry == null) throw new IllegalStateException("Code was not acknowledged");
+        return expiry;
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Starts the client again and again against a {@link FakeAttendanceServer},
+ * and reports how long each took to show its first code.
+ * <br /><br />
+ * Every client is a training run, so it exits by itself once the first code
+ * is shown. Two times are kept: the time the client logs for itself, from
+ * the JVM starting, and the time from spawning the process, which also
+ * counts creating the JVM.
+ * <br /><br />
+ * Compare the client with and without a class data sharing archive, made by
+ * the {@code cds} profile of the client's pom, for example:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.ed522.bcr2200.attendance.io.StartupBenchmark \
+ *     --classpath target/attendance-1.0-jar-with-dependencies.jar --archive target/attendance.jsa --runs 20
+ * </pre>
+ * The client listens on the usual callback port, so only one runs at a time,
+ * and no other client may run on the same machine.
+ */
+public final class StartupBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger("StartupBenchmark");
+    private static final Pattern FIRST_CODE = Pattern.compile("First code shown (\\d+)ms after start");
+    private static final String MAIN_CLASS = "com.ed522.bcr2200.attendance.Launcher";
+    private static final long RUN_TIMEOUT = 30_000; // ms
+
+    private final LatencyHistogram selfReported = new LatencyHistogram();
+    private final LatencyHistogram fromSpawn = new LatencyHistogram();
+    private final List<String> jvmArguments = new ArrayList<>();
+
+    private int runs = 10;
+    private boolean headless = false;
+    private String archive = null;
+    private String classpath = System.getProperty("java.class.path");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        StartupBenchmark benchmark = new StartupBenchmark();
+        int index = 0;
+        while (index != -1) {
+            index = benchmark.parseArguments(args, index);
+        }
+        benchmark.run();
+    }
+
+    /**
+     * Parse one option, as {@link LoadDriver} does.
+     * @return the index of the next unparsed argument, or -1 at the end
+     */
+    private int parseArguments(String[] args, int index) {
+        if (index >= args.length) return -1;
+        String option = Objects.requireNonNull(args[index], "One of the args was null");
+        if (option.equals("--headless")) {
+            this.headless = true;
+            return index + 1;
+        }
+        if (index + 1 >= args.length) throw new IllegalArgumentException(option + " needs a value");
+        String value = args[index + 1];
+        switch (option) {
+            case "--runs" -> this.runs = Integer.parseInt(value);
+            case "--archive" -> this.archive = value;
+            case "--classpath" -> this.classpath = value;
+            case "--jvm-arg" -> this.jvmArguments.add(value);
+            default -> throw new IllegalArgumentException("Unknown option " + option);
+        }
+        return index + 2;
+    }
+
+    private void run() throws IOException, InterruptedException {
+
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(this.jvmArguments);
+        if (this.archive != null) command.add("-XX:SharedArchiveFile=" + this.archive);
+        command.add("-cp");
+        command.add(this.classpath);
+        command.add(MAIN_CLASS);
+        command.add(this.headless ? "--headless" : "--windowed");
+        command.add("--training-run");
+        command.add("--hosts");
+        command.add("127.0.0.1");
+
+        int failed = 0;
+        try (FakeAttendanceServer server = new FakeAttendanceServer()) {
+            server.start();
+            for (int i = 0; i < this.runs; i++) {
+                if (!this.runOnce(command)) failed++;
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "%d runs (%d failed), %s, %s%n", this.runs, failed,
+                this.headless ? "headless" : "windowed", this.archive == null ? "no archive" : "archive " + this.archive);
+        System.out.printf(Locale.ROOT, "%-22s %8s %9s %9s %9s %9s %9s%n", "(ms)", "count", "mean", "p50", "p90", "p99", "max");
+        printRow("first code (JVM)", this.selfReported);
+        printRow("first code (spawn)", this.fromSpawn);
+
+    }
+
+    /**
+     * Start the client once, and wait for it to exit.
+     * @return whether it showed a code
+     */
+    private boolean runOnce(List<String> command) throws IOException, InterruptedException {
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        boolean shown = false;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = FIRST_CODE.matcher(line);
+                if (shown || !matcher.find()) continue;
+                this.fromSpawn.record(System.nanoTime() - start);
+                this.selfReported.record(TimeUnit.MILLISECONDS.toNanos(Long.parseLong(matcher.group(1))));
+                shown = true;
+            }
+        }
+
+        if (!process.waitFor(RUN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            LOGGER.log(Level.WARNING, "Client did not exit, killing it");
+            process.destroyForcibly().waitFor();
+        }
+        if (!shown) LOGGER.log(Level.WARNING, "Client exited with " + process.exitValue() + " without showing a code");
+        return shown;
+
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot s = histogram.snapshot();
+        System.out.printf(Locale.ROOT, "%-22s %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                name, s.count(), s.meanMillis(), s.p50Millis(), s.p90Millis(), s.p99Millis(), s.maxMillis());
+    }
+
+}
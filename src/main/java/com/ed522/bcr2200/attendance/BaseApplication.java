@@ -1,70 +1,119 @@
 package com.ed522.bcr2200.attendance;
 
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint;
+import com.ed522.bcr2200.attendance.io.CodeStream;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
+import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.stage.Stage;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Objects;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class BaseApplication extends Application {
 
     public static final long VERSION = 0x1;
+    public static final int MAX_TRIES = 0;
+    public static final long METRICS_INTERVAL = 60_000; // ms
 
-    private static String[] allowedHosts = new String[0];
+    private static final Logger LOGGER = Logger.getLogger("Application");
+
+    private static final long STOP_TIMEOUT = 5_000; // ms, for the communicator to close the connection
+
+    private final List<CodeViewController> controllers = new CopyOnWriteArrayList<>();
+    // for the application's own chores, the displays each tick from their own
+    private final TaskScheduler scheduler = new TaskScheduler("ApplicationTimer");
+    private volatile Thread communicator;
+
+    private static volatile ClientOptions options = ClientOptions.parse(new String[0]);
 
     public static String[] getAllowedHosts() {
-        return Arrays.copyOf(allowedHosts, allowedHosts.length);
+        return options.getAllowedHosts();
+    }
+
+    public static String[] getRooms() {
+        return options.getRooms();
+    }
+
+    public static boolean isBinaryEnabled() {
+        return options.isBinaryEnabled();
     }
 
     /**
-     * Parse command line arguments, storing them away when necessary.
-     * @param args full arguments array
-     * @param index the index to start parsing from
-     * @return the index of the next unparsed argument - suitable to pass into another invocation
+     * @return where to write metrics snapshots, or null if they are not written
      */
-    private int parseArguments(String[] args, int index) {
-        Objects.requireNonNull(args, "arg array must be non null");
-        if (index >= args.length)
-            return -1; // so a method can just loop until -1 is received
-        if (index == 0)
-            return 1; // skip argv[0], which is just the executable name
-        return switch (args[index]) {
-            case null -> throw new IllegalArgumentException("One of the args was null");
-            case "--host", "--hosts", "-h" -> {
-                // consume host + an actual hostname
-                String hosts = args[index + 1];
-                Objects.requireNonNull(hosts, "Argument null?");
-                allowedHosts = hosts.split(",");
-                yield index + 2;
-            }
-            default -> {
-                Logger.getLogger("Application").log(Level.WARNING,
-                        "Got unrecognized command line argument - ignoring");
-                yield index + 1;
-            }
-        };
+    public static Path getMetricsFile() {
+        return options.getMetricsFile();
     }
 
     @Override
     public void start(Stage stage) throws IOException {
 
         Parameters params = this.getParameters();
-        String[] args = params.getRaw().toArray(new String[0]);
+        options = ClientOptions.parse(params.getRaw().toArray(new String[0]));
+        if (options.isTrainingRun()) Startup.beginTrainingRun();
 
-        int index = 0;
-        while (index != -1) {
-            index = parseArguments(args, index);
+        // every display shares one connection to the server
+        AttendanceEndpoint server = options.createEndpoint(this.scheduler);
+        server.getMetrics().register("client");
+
+        String[] rooms = options.getRooms();
+        if (rooms.length == 0) {
+            this.showDisplay(stage, server.getDefaultStream(), "Attendance Client");
+        } else for (int i = 0; i < rooms.length; i++) {
+            this.showDisplay(i == 0 ? stage : new Stage(), server.openStream(rooms[i]), "Attendance Client - " + rooms[i]);
         }
 
-        FXMLLoader fxmlLoader = new FXMLLoader(BaseApplication.class.getResource("code-view.fxml"));
-        Scene scene = new Scene(fxmlLoader.load(), 800, 480);
+        this.communicator = Thread.ofVirtual().name("Communicator").start(() -> {
+            // reconnects until stopped, each connection's threads and sockets end with it
+            try {
+                server.keepConnected(MAX_TRIES, getAllowedHosts());
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.INFO, "Communicator stopped");
+            }
+        });
+    }
+
+    /**
+     * Close the connection and stop every timer, so nothing is left running
+     * once JavaFX exits.
+     */
+    @Override
+    public void stop() throws InterruptedException {
+        for (CodeViewController controller : this.controllers) {
+            controller.shutdown();
+        }
+        this.scheduler.shutdown();
+        Thread communicator = this.communicator;
+        if (communicator != null) {
+            communicator.interrupt();
+            communicator.join(STOP_TIMEOUT);
+        }
+    }
+
+    private void showDisplay(Stage stage, CodeStream codeStream, String title) throws IOException {
+
+        CodeViewController controller;
+        Parent root;
+        if (options.isFxmlScene()) {
+            FXMLLoader fxmlLoader = new FXMLLoader(BaseApplication.class.getResource("code-view.fxml"));
+            root = fxmlLoader.load();
+            controller = fxmlLoader.getController();
+        } else {
+            controller = new CodeViewController();
+            root = controller.createView();
+        }
+        Scene scene = new Scene(root, 800, 480);
+        controller.attach(codeStream, options);
+        this.controllers.add(controller);
 
         scene.addEventHandler(KeyEvent.KEY_PRESSED, k -> {
             if (k.getCode() == KeyCode.F11) {
@@ -72,12 +121,13 @@ public class BaseApplication extends Application {
             }
         });
         scene.setOnMouseClicked(e -> {
-            fxmlLoader.<CodeViewController>getController().forceCodeGeneration();
+            controller.forceCodeGeneration();
         });
 
-        stage.setOnCloseRequest(x -> System.exit(0));
+        // runs stop, which closes the connection before the JVM exits
+        stage.setOnCloseRequest(x -> Platform.exit());
 
-        stage.setTitle("Attendance Client");
+        stage.setTitle(title);
         stage.setFullScreen(true);
         stage.setScene(scene);
         stage.show();
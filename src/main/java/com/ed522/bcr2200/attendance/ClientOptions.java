@@ -0,0 +1,280 @@
+package com.ed522.bcr2200.attendance;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint;
+import com.ed522.bcr2200.attendance.io.CodeJournal;
+import com.ed522.bcr2200.attendance.io.CodeStream;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The command line options shared by the windowed and headless clients.
+ * Loads no JavaFX classes, so the headless client can parse its arguments
+ * on a machine without JavaFX.
+ */
+public final class ClientOptions {
+
+    private static final Logger LOGGER = Logger.getLogger("Application");
+
+    private String[] allowedHosts = new String[0];
+    private String[] rooms = new String[0];
+    private boolean binaryEnabled = true;
+    private Path metricsFile = null;
+    private String journal = "home";
+    private boolean leaseEnabled = false;
+    private long prefetchWindow = 10_000; // ms
+    private double prefetchPhase = CodeRotator.RANDOM_PHASE;
+    private boolean headless = false;
+    private String sink = "stdout";
+    private boolean fxmlScene = false;
+    private boolean trainingRun = false;
+
+    /**
+     * @param args full arguments array
+     * @return the options given in {@code args}
+     */
+    public static ClientOptions parse(String[] args) {
+        ClientOptions options = new ClientOptions();
+        int index = 0;
+        while (index != -1) {
+            index = options.parseArguments(args, index);
+        }
+        return options;
+    }
+
+    /**
+     * Parse command line arguments, storing them away when necessary.
+     * @param args full arguments array
+     * @param index the index to start parsing from
+     * @return the index of the next unparsed argument - suitable to pass into another invocation
+     */
+    private int parseArguments(String[] args, int index) {
+        Objects.requireNonNull(args, "arg array must be non null");
+        if (index >= args.length)
+            return -1; // so a method can just loop until -1 is received
+        // checked up front, a switch with case null is bootstrapped at run time, which slows startup
+        if (args[index] == null)
+            throw new IllegalArgumentException("One of the args was null");
+        return switch (args[index]) {
+            case "--host", "--hosts", "-h" -> {
+                // consume host + an actual hostname
+                String hosts = args[index + 1];
+                Objects.requireNonNull(hosts, "Argument null?");
+                this.allowedHosts = hosts.split(",");
+                yield index + 2;
+            }
+            case "--room", "--rooms" -> {
+                // consume rooms + a list of room ids, one display each
+                String list = args[index + 1];
+                Objects.requireNonNull(list, "Argument null?");
+                this.rooms = list.split(",");
+                yield index + 2;
+            }
+            case "--protocol" -> {
+                // consume protocol + binary/json, binary is only used if the server agrees
+                String protocol = args[index + 1];
+                Objects.requireNonNull(protocol, "Argument null?");
+                this.binaryEnabled = switch (protocol) {
+                    case "binary" -> true;
+                    case "json" -> false;
+                    default -> throw new IllegalArgumentException("Unknown protocol " + protocol);
+                };
+                yield index + 2;
+            }
+            case "--metrics-file" -> {
+                // consume metrics-file + a path, rewritten every METRICS_INTERVAL
+                String file = args[index + 1];
+                Objects.requireNonNull(file, "Argument null?");
+                this.metricsFile = Path.of(file);
+                yield index + 2;
+            }
+            case "--journal" -> {
+                // consume journal + a path, home for the home directory, or none
+                String file = args[index + 1];
+                Objects.requireNonNull(file, "Argument null?");
+                this.journal = file;
+                yield index + 2;
+            }
+            case "--lease" -> {
+                // ask the server for a lease and derive codes locally, see CodeLease
+                this.leaseEnabled = true;
+                yield index + 1;
+            }
+            case "--prefetch-window" -> {
+                // consume prefetch-window + milliseconds before expiry the next codes may be registered, 0 for straight away
+                String window = args[index + 1];
+                Objects.requireNonNull(window, "Argument null?");
+                this.prefetchWindow = Long.parseLong(window);
+                yield index + 2;
+            }
+            case "--prefetch-phase" -> {
+                // consume prefetch-phase + 0 to 1 through the window, or random to draw one per rotation
+                String phase = args[index + 1];
+                Objects.requireNonNull(phase, "Argument null?");
+                this.prefetchPhase = phase.equals("random") ? CodeRotator.RANDOM_PHASE : Double.parseDouble(phase);
+                yield index + 2;
+            }
+            case "--headless" -> {
+                // run without JavaFX, see HeadlessKiosk
+                this.headless = true;
+                yield index + 1;
+            }
+            case "--windowed" -> {
+                // the default, the opposite of --headless
+                this.headless = false;
+                yield index + 1;
+            }
+            case "--scene" -> {
+                // consume scene + code/fxml, code starts faster
+                String scene = args[index + 1];
+                Objects.requireNonNull(scene, "Argument null?");
+                this.fxmlScene = switch (scene) {
+                    case "code" -> false;
+                    case "fxml" -> true;
+                    default -> throw new IllegalArgumentException("Unknown scene " + scene);
+                };
+                yield index + 2;
+            }
+            case "--training-run" -> {
+                // exit once the first code is shown, see Startup
+                this.trainingRun = true;
+                yield index + 1;
+            }
+            case "--sink" -> {
+                // consume sink + stdout or file:<path>, headless only
+                String value = args[index + 1];
+                Objects.requireNonNull(value, "Argument null?");
+                this.sink = value;
+                yield index + 2;
+            }
+            default -> {
+                LOGGER.log(Level.WARNING,
+                        "Got unrecognized command line argument - ignoring");
+                yield index + 1;
+            }
+        };
+    }
+
+    /**
+     * Create the endpoint every display shares, configured by these options.
+     * If a metrics file was given, a snapshot is written to it every
+     * {@link BaseApplication#METRICS_INTERVAL}. If the journal cannot be
+     * opened, codes are kept in memory only.
+     * @param scheduler the scheduler to write metrics snapshots from, shut down by the caller along with the endpoint
+     * @return the endpoint, not yet connected
+     */
+    public AttendanceEndpoint createEndpoint(TaskScheduler scheduler) {
+        AttendanceEndpoint server = new AttendanceEndpoint();
+        server.setBatchingEnabled(true);
+        server.setBinaryEnabled(this.binaryEnabled);
+        server.setLeaseEnabled(this.leaseEnabled);
+        if (!this.journal.equals("none")) try {
+            server.setJournal(this.journal.equals("home")
+                    ? CodeJournal.inHomeDirectory() : CodeJournal.open(Path.of(this.journal)));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not open the code journal, codes will not survive a restart: " + e.getMessage());
+        }
+        Path file = this.metricsFile;
+        if (file != null) {
+            scheduler.schedule(now -> {
+                try {
+                    server.getMetrics().writeSnapshot(file);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not write metrics: " + e.getMessage());
+                }
+                return now + BaseApplication.METRICS_INTERVAL;
+            }, System.currentTimeMillis() + BaseApplication.METRICS_INTERVAL);
+        }
+        return server;
+    }
+
+    /**
+     * Start showing codes for a stream, configured by these options.
+     * @param codeStream the stream the display sends its codes on
+     * @param scheduler the scheduler to tick the rotation from
+     * @param sink where to show the codes
+     * @return the display
+     */
+    public CodeDisplay createDisplay(CodeStream codeStream, TaskScheduler scheduler, CodeSink sink) {
+        CodeDisplay display = new CodeDisplay(codeStream, scheduler, sink);
+        display.setPrefetch(this.prefetchWindow, this.prefetchPhase);
+        return display;
+    }
+
+    public String[] getAllowedHosts() {
+        return Arrays.copyOf(this.allowedHosts, this.allowedHosts.length);
+    }
+
+    public String[] getRooms() {
+        return Arrays.copyOf(this.rooms, this.rooms.length);
+    }
+
+    public boolean isBinaryEnabled() {
+        return this.binaryEnabled;
+    }
+
+    /**
+     * @return where to write metrics snapshots, or null if they are not written
+     */
+    public Path getMetricsFile() {
+        return this.metricsFile;
+    }
+
+    /**
+     * @return the code journal's path, {@code home} for the home directory, or {@code none}
+     */
+    public String getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * @return whether to ask the server for a lease to derive codes under
+     */
+    public boolean isLeaseEnabled() {
+        return this.leaseEnabled;
+    }
+
+    /**
+     * @return how long before expiry the next codes may be registered, in milliseconds
+     */
+    public long getPrefetchWindow() {
+        return this.prefetchWindow;
+    }
+
+    /**
+     * @return how far through the prefetch window to register, or {@link CodeRotator#RANDOM_PHASE}
+     */
+    public double getPrefetchPhase() {
+        return this.prefetchPhase;
+    }
+
+    public boolean isHeadless() {
+        return this.headless;
+    }
+
+    /**
+     * @return whether to load the code view from FXML rather than build it in code
+     */
+    public boolean isFxmlScene() {
+        return this.fxmlScene;
+    }
+
+    /**
+     * @return whether this is a training run for a class data sharing archive
+     */
+    public boolean isTrainingRun() {
+        return this.trainingRun;
+    }
+
+    /**
+     * @return where the headless client shows codes: {@code stdout}, or {@code file:} and a path
+     */
+    public String getSink() {
+        return this.sink;
+    }
+
+}
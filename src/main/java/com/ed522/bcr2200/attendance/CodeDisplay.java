@@ -0,0 +1,116 @@
+package com.ed522.bcr2200.attendance;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint;
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.ConnectionState;
+import com.ed522.bcr2200.attendance.io.CodeStream;
+
+/**
+ * Keeps one display's codes current, whatever shows them.
+ * <br /><br />
+ * A {@link CodeRotator} is ticked from a {@link TaskScheduler} at each
+ * expiry while the connection is good, and the codes are thrown away
+ * whenever the connection becomes good again, so codes registered before a
+ * problem are never shown. Each tick checks the endpoint's
+ * {@link AttendanceEndpoint#getGoodConnectionCount() count of good
+ * connections} rather than relying on listeners, which may never see a
+ * problem that cleared quickly; the listener only brings the tick forward.
+ * New codes are passed to a {@link CodeSink}.
+ * <br /><br />
+ * If the endpoint holds a {@link com.ed522.bcr2200.attendance.io.CodeLease
+ * lease} or keeps a {@link com.ed522.bcr2200.attendance.io.CodeJournal
+ * journal}, codes keep rotating while the connection is down (see
+ * {@link CodeRotator#tickOffline(long)}). Otherwise the display checks
+ * again every {@link #RETRY_DELAY_MS}.
+ * <br /><br />
+ * Connection changes are not passed on, as one sink may serve many
+ * displays; whoever owns the sink registers it with the endpoint.
+ */
+public final class CodeDisplay {
+
+    public static final int NUMBER_LENGTH = 6;
+    public static final int CODES_SHOWN = 3;
+    public static final int PREPARED_ROTATIONS = 2;
+
+    private static final long RETRY_DELAY_MS = 1_000; // while waiting for codes or a connection
+
+    private final AttendanceEndpoint server;
+    private final String streamId;
+    private final CodeRotator rotator;
+    private final CodeSink sink;
+    private final TaskScheduler.Handle codesTask;
+    private long goodConnections = 0; // only touched by updateCodes
+
+    /**
+     * Start showing codes for a stream.
+     * @param codeStream the stream this display sends its codes on
+     * @param scheduler the scheduler to tick the rotation from, may be shared between displays
+     * @param sink where to show the codes
+     */
+    public CodeDisplay(CodeStream codeStream, TaskScheduler scheduler, CodeSink sink) {
+
+        this.server = codeStream.getEndpoint();
+        this.streamId = codeStream.getId();
+        this.sink = sink;
+        this.rotator = new CodeRotator(codeStream, CODES_SHOWN, PREPARED_ROTATIONS);
+        this.rotator.setOnRotation(this::showRotation);
+
+        // runs at each expiry, see updateCodes
+        this.codesTask = scheduler.schedule(this::updateCodes, System.currentTimeMillis());
+        // a deferred registration needs a tick before the current codes expire, fetched codes one straight away
+        this.rotator.setOnWakeUp(this.codesTask::wakeAt);
+
+        // updateCodes throws the codes away, this just saves waiting for the next tick
+        this.server.registerConnectionStateListener(state -> {
+            if (state == ConnectionState.CONNECTED_GOOD) this.codesTask.wakeNow();
+        });
+
+    }
+
+    /**
+     * Spread this display's registrations over a window before each expiry,
+     * see {@link CodeRotator#setPrefetch(long, double)}.
+     */
+    public void setPrefetch(long windowMillis, double phase) {
+        this.rotator.setPrefetch(windowMillis, phase);
+    }
+
+    /**
+     * Throw away the codes shown and show fresh ones as soon as possible.
+     */
+    public void forceCodeGeneration() {
+        this.rotator.invalidate();
+        this.codesTask.wakeNow();
+    }
+
+    /**
+     * @return when the current codes expire, or when to try again if there are none yet
+     */
+    private long updateCodes(long now) {
+
+        if (this.server.getState() != ConnectionState.CONNECTED_GOOD) {
+            // keep going on a lease or a journal if there is one, otherwise check again shortly
+            if (!this.rotator.tickOffline(now)) return now + RETRY_DELAY_MS;
+        } else {
+            // good again since the last tick, however briefly it was not
+            long goodConnections = this.server.getGoodConnectionCount();
+            if (goodConnections != this.goodConnections) {
+                this.goodConnections = goodConnections;
+                this.rotator.invalidate();
+            }
+            // swaps in the next prepared codes once these expire
+            this.rotator.tick(now);
+        }
+
+        // no codes yet, or expired while new ones are on their way: the rotator wakes us when they arrive
+        CodeRotator.Rotation current = this.rotator.getCurrent();
+        if (current == null || current.expiry().toEpochMilli() <= now) return now + RETRY_DELAY_MS;
+        return current.expiry().toEpochMilli();
+
+    }
+
+    private void showRotation(CodeRotator.Rotation rotation) {
+        this.codesTask.wakeAt(rotation.expiry().toEpochMilli());
+        this.sink.show(this.streamId, rotation);
+    }
+
+}
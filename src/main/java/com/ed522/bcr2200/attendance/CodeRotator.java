@@ -0,0 +1,363 @@
+package com.ed522.bcr2200.attendance;
+
+import static com.ed522.bcr2200.attendance.io.AttendanceEndpoint.VerificationCode;
+
+import com.ed522.bcr2200.attendance.io.CodeLease;
+import com.ed522.bcr2200.attendance.io.CodeStream;
+
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which codes a display shows, and keeps the next ones ready.
+ * <br /><br />
+ * Besides the codes currently shown, a small pool of upcoming rotations is
+ * generated in the background and registered with the server ahead of time,
+ * each valid from the moment the one before it expires. When the current
+ * codes expire, the next rotation is taken from the pool without waiting on
+ * the server. Only when the pool is empty (on startup, after a reconnect or
+ * when forced) does a rotation wait for a round trip.
+ * <br /><br />
+ * Kiosks started together expire their codes in the same instants, so
+ * registering each rotation as soon as there is room would have all of them
+ * hit the server at once. With a prefetch window set (see
+ * {@link #setPrefetch(long, double)}), the next rotation is registered only
+ * once the last prepared one is within the window of expiring, at a phase
+ * through the window that is either fixed per kiosk or drawn at random each
+ * time, which spreads registrations across the rotation period.
+ * <br /><br />
+ * While the server cannot be reached, {@link #tickOffline(long)} keeps
+ * rotating without it, guessing each expiry from how long the server last
+ * made codes valid for, if the endpoint keeps a journal. The codes are still
+ * queued, to be sent once the connection is back.
+ * <br /><br />
+ * While the endpoint holds a {@link CodeLease}, connected or not, each
+ * rotation is derived from it instead, costing no round trip at all, and
+ * reported to the server with the next reconciliation.
+ */
+public final class CodeRotator {
+
+    /**
+     * A set of codes shown together.
+     * @param codes the code values
+     * @param generation when the codes become valid
+     * @param expiry when the codes stop being valid, as told by the server
+     */
+    public record Rotation(long[] codes, Instant generation, Instant expiry) {}
+
+    public static final int NUMBER_BOUNDS = 1_000_000;
+    /**
+     * A prefetch phase asking for a new random phase for every rotation.
+     */
+    public static final double RANDOM_PHASE = Double.NaN;
+
+    // left before the last prepared codes expire, for the round trip and a retry or two
+    private static final long MIN_PREFETCH_LEAD = 2_000; // ms
+
+    private static final Logger LOGGER = Logger.getLogger("CodeRotator");
+
+    private final CodeStream codeStream;
+    private final Function<List<VerificationCode>, List<CompletableFuture<Instant>>> sender;
+    private final int codesPerRotation;
+    private final SecureRandom random = new SecureRandom();
+    private final ArrayBlockingQueue<Rotation> pool;
+    private final AtomicBoolean producing = new AtomicBoolean(false);
+    private final AtomicBoolean rotating = new AtomicBoolean(false);
+
+    private volatile Consumer<Rotation> onRotation = x -> {};
+    private volatile LongConsumer onWakeUp = x -> {};
+    private volatile long prefetchWindow = 0; // ms
+    private volatile double prefetchPhase = RANDOM_PHASE;
+    // when the rotation after refillTail is to be registered, drawn once per tail
+    private volatile Rotation refillTail;
+    private volatile long refillAt; // epoch ms
+    private volatile Rotation current;
+    private volatile Rotation lastPrepared;
+    // how long the server last made codes valid for, 0 until it has said
+    private volatile long validity = 0; // ms
+    // the last lease period reported, so codes shown again after invalidate are not reported twice
+    private volatile CodeLease reportedLease;
+    private volatile long reportedPeriod;
+    // bumped on invalidate, so replies to requests made before it are dropped
+    private volatile int epoch = 0;
+
+    /**
+     * @param codeStream the stream to register codes on
+     * @param codesPerRotation how many codes are shown at once
+     * @param poolSize how many rotations to keep ready ahead of the current one
+     */
+    public CodeRotator(CodeStream codeStream, int codesPerRotation, int poolSize) {
+        this(codeStream, codesPerRotation, poolSize, codeStream::sendCodesAsync);
+    }
+
+    /**
+     * @param sender registers codes, in place of {@code codeStream}'s {@link CodeStream#sendCodesAsync(List)}
+     */
+    CodeRotator(CodeStream codeStream, int codesPerRotation, int poolSize,
+                Function<List<VerificationCode>, List<CompletableFuture<Instant>>> sender) {
+        this.codeStream = codeStream;
+        this.sender = sender;
+        this.codesPerRotation = codesPerRotation;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * @param onRotation called with each rotation as it becomes current, on whichever thread made it so
+     */
+    public void setOnRotation(Consumer<Rotation> onRotation) {
+        this.onRotation = onRotation;
+    }
+
+    /**
+     * @param onWakeUp called with a time, in epoch milliseconds, the owner
+     *                 should {@link #tick(long)} no later than: when a
+     *                 deferred registration is due, or straight away once
+     *                 codes fetched on a tick have arrived
+     */
+    public void setOnWakeUp(LongConsumer onWakeUp) {
+        this.onWakeUp = onWakeUp;
+    }
+
+    /**
+     * Spread registrations out, rather than making each as soon as there is
+     * room in the pool.
+     * @param windowMillis how long before the last prepared codes expire the next may be registered, or 0 to register straight away
+     * @param phase how far through the window to register, from 0 (its start) to 1 (its end), or {@link #RANDOM_PHASE}
+     */
+    public void setPrefetch(long windowMillis, double phase) {
+        if (windowMillis < 0) throw new IllegalArgumentException("Negative prefetch window " + windowMillis);
+        if (!Double.isNaN(phase) && (phase < 0 || phase > 1)) {
+            throw new IllegalArgumentException("Prefetch phase must be between 0 and 1, got " + phase);
+        }
+        this.prefetchWindow = windowMillis;
+        this.prefetchPhase = phase;
+        // drawn again with the new settings
+        this.refillTail = null;
+    }
+
+    public Rotation getCurrent() {
+        return this.current;
+    }
+
+    /**
+     * Rotate if the current codes have expired, and top up the pool. Call
+     * this periodically while connected; it allocates nothing unless it
+     * rotates or registers codes.
+     * @param nowMillis the current time, in epoch milliseconds
+     */
+    public void tick(long nowMillis) {
+
+        if (this.tickLeased(nowMillis)) return;
+
+        Rotation cur = this.current;
+        if (cur != null && cur.expiry().toEpochMilli() > nowMillis) {
+            this.refill();
+            return;
+        }
+
+        Rotation next = this.takePrepared(nowMillis);
+        if (next != null) {
+            this.activate(next);
+            this.refill();
+            return;
+        }
+
+        // nothing ready, fetch one now
+        if (!this.rotating.compareAndSet(false, true)) return;
+        int requestEpoch = this.epoch;
+        this.register(Instant.ofEpochMilli(nowMillis)).whenComplete((rotation, e) -> {
+            this.rotating.set(false);
+            if (e != null) {
+                // retried on the owner's next tick, not straight away
+                LOGGER.log(Level.WARNING, "Could not rotate codes: " + e.getMessage());
+                return;
+            }
+            if (requestEpoch == this.epoch) {
+                this.lastPrepared = rotation;
+                this.activate(rotation);
+                this.refill();
+            }
+            // shown already, or thrown away by invalidate and fetched again on this tick
+            this.onWakeUp.accept(System.currentTimeMillis());
+        });
+
+    }
+
+    /**
+     * Rotate if the current codes have expired, without waiting on the
+     * server. Call this instead of {@link #tick(long)} while disconnected.
+     * Codes are derived from a lease if there is one. Otherwise they are
+     * queued like any others, with a guessed expiry since the server is not
+     * there to say, but only if the endpoint journals them, so they cannot
+     * be lost.
+     * @param nowMillis the current time, in epoch milliseconds
+     * @return false if no codes can be made, as there is no lease and no journal, or the server has never said how long codes last
+     */
+    public boolean tickOffline(long nowMillis) {
+
+        if (this.tickLeased(nowMillis)) return true;
+        long validity = this.validity;
+        if (validity == 0 || this.codeStream.getEndpoint().getJournal() == null) return false;
+        Rotation cur = this.current;
+        if (cur != null && cur.expiry().toEpochMilli() > nowMillis) return true;
+
+        // codes registered before the connection went are still good
+        Rotation next = this.takePrepared(nowMillis);
+        if (next != null) {
+            this.activate(next);
+            return true;
+        }
+
+        // codes are sent with their time in seconds, and the server counts from that
+        Instant generation = Instant.ofEpochSecond(Math.floorDiv(nowMillis, 1000));
+        long[] values = this.generateCodes();
+        List<VerificationCode> codes = new ArrayList<>(this.codesPerRotation);
+        for (long value : values) {
+            codes.add(new VerificationCode(value, generation));
+        }
+        // acknowledged, if ever, long after these codes were shown
+        this.sender.apply(codes);
+        this.activate(new Rotation(values, generation, generation.plusMillis(validity)));
+        return true;
+
+    }
+
+    /**
+     * Rotate to the current lease period's codes, if they are not shown
+     * already.
+     * @return false if no lease covers {@code nowMillis}
+     */
+    private boolean tickLeased(long nowMillis) {
+
+        CodeLease lease = this.codeStream.getEndpoint().getLease();
+        if (lease == null || !lease.covers(nowMillis)) return false;
+        Rotation cur = this.current;
+        if (cur != null && cur.expiry().toEpochMilli() > nowMillis) return true;
+
+        long period = lease.periodAt(nowMillis);
+        Instant generation = lease.start(period);
+        long[] values = lease.derive(this.codeStream.getId(), period, this.codesPerRotation, NUMBER_BOUNDS);
+        if (lease != this.reportedLease || period != this.reportedPeriod) {
+            this.reportedLease = lease;
+            this.reportedPeriod = period;
+            List<VerificationCode> codes = new ArrayList<>(this.codesPerRotation);
+            for (long value : values) {
+                codes.add(new VerificationCode(value, generation));
+            }
+            this.codeStream.reconcileCodesAsync(codes);
+        }
+        this.activate(new Rotation(values, generation, lease.expiry(period)));
+        return true;
+
+    }
+
+    /**
+     * Throw away the current and prepared codes, so the next tick shows
+     * fresh ones.
+     */
+    public void invalidate() {
+        this.epoch++;
+        this.pool.clear();
+        this.current = null;
+        this.lastPrepared = null;
+    }
+
+    /**
+     * @return the next prepared rotation, skipping any that went stale while we were away, or null if there is none
+     */
+    private Rotation takePrepared(long nowMillis) {
+        Rotation next;
+        while ((next = this.pool.poll()) != null && next.expiry().toEpochMilli() <= nowMillis) {
+            LOGGER.log(Level.FINE, "Dropping stale prepared rotation");
+        }
+        return next;
+    }
+
+    private void activate(Rotation rotation) {
+        this.current = rotation;
+        this.onRotation.accept(rotation);
+    }
+
+    /**
+     * Register the rotation after the last prepared one, if there is room in
+     * the pool, nothing is being registered already and it is within the
+     * prefetch window. Chains itself until the pool is full.
+     */
+    private void refill() {
+        Rotation tail = this.lastPrepared;
+        if (tail == null || this.pool.remainingCapacity() == 0) return;
+        long due = this.refillDue(tail);
+        if (due > System.currentTimeMillis()) {
+            this.onWakeUp.accept(due);
+            return;
+        }
+        if (!this.producing.compareAndSet(false, true)) return;
+
+        int requestEpoch = this.epoch;
+        this.register(tail.expiry()).whenComplete((rotation, e) -> {
+            this.producing.set(false);
+            if (e != null) {
+                LOGGER.log(Level.WARNING, "Could not prepare next codes: " + e.getMessage());
+            } else if (requestEpoch == this.epoch && this.pool.offer(rotation)) {
+                this.lastPrepared = rotation;
+                this.refill();
+            }
+        });
+    }
+
+    /**
+     * @return when the rotation after {@code tail} is to be registered, in epoch milliseconds
+     */
+    private long refillDue(Rotation tail) {
+        long window = this.prefetchWindow;
+        if (window == 0) return 0;
+        // racing callers may both draw, either time will do
+        if (tail != this.refillTail) {
+            double phase = this.prefetchPhase;
+            if (Double.isNaN(phase)) phase = this.random.nextDouble();
+            // phase 1 still leaves MIN_PREFETCH_LEAD, unless the whole window is shorter
+            long spread = Math.max(0, window - MIN_PREFETCH_LEAD);
+            this.refillAt = tail.expiry().toEpochMilli() - window + (long) (phase * spread);
+            this.refillTail = tail;
+        }
+        return this.refillAt;
+    }
+
+    /**
+     * @return a fresh set of random codes for one rotation
+     */
+    long[] generateCodes() {
+        long[] values = new long[this.codesPerRotation];
+        for (int i = 0; i < this.codesPerRotation; i++) {
+            values[i] = this.random.nextInt(NUMBER_BOUNDS);
+        }
+        return values;
+    }
+
+    /**
+     * Generate a rotation valid from {@code generation} and register it with the server.
+     */
+    private CompletableFuture<Rotation> register(Instant generation) {
+        long[] values = this.generateCodes();
+        List<VerificationCode> codes = new ArrayList<>(this.codesPerRotation);
+        for (long value : values) {
+            codes.add(new VerificationCode(value, generation));
+        }
+        // all codes in a rotation are sent in one batch and share an expiry
+        return this.sender.apply(codes).getFirst().thenApply(expiry -> {
+            this.validity = expiry.toEpochMilli() - generation.getEpochSecond() * 1000;
+            return new Rotation(values, generation, expiry);
+        });
+    }
+
+}
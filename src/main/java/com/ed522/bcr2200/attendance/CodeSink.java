@@ -0,0 +1,30 @@
+package com.ed522.bcr2200.attendance;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.ConnectionState;
+
+/**
+ * Where a {@link CodeDisplay} shows its codes: a window, a console, a small
+ * character display.
+ * <br /><br />
+ * Both methods are called from background threads (the scheduler, or the
+ * endpoint's listener executor), so a sink should hand slow work to a thread
+ * of its own and must not block.
+ */
+public interface CodeSink {
+
+    /**
+     * Show a new set of codes in place of the last.
+     * @param streamId the stream the codes were registered on, null for the default stream
+     * @param rotation the codes, and when they expire
+     */
+    void show(String streamId, CodeRotator.Rotation rotation);
+
+    /**
+     * Called once the sink is registered as a
+     * {@link com.ed522.bcr2200.attendance.io.AttendanceEndpoint#registerConnectionStateListener
+     * connection state listener}.
+     * @param state the endpoint's new connection state
+     */
+    void connectionChanged(ConnectionState state);
+
+}
@@ -1,44 +1,41 @@
 package com.ed522.bcr2200.attendance;
 
-import static com.ed522.bcr2200.attendance.io.AttendanceEndpoint.VerificationCode;
-
 import com.ed522.bcr2200.attendance.io.AttendanceEndpoint;
+import com.ed522.bcr2200.attendance.io.CodeStream;
+import javafx.animation.KeyFrame;
+import javafx.animation.KeyValue;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Parent;
+import javafx.scene.control.ContentDisplay;
 import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
+import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.util.Duration;
 
-import java.io.IOException;
-import java.security.SecureRandom;
-import java.sql.Date;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-import java.text.SimpleDateFormat;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.*;
-import java.util.function.Consumer;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class CodeViewController {
-
-    public static final int MAX_TRIES = 0;
-
-    /**
-     * A callback for a task that should be run periodically.
-     * @param initialCounter The counter value to set initially. Zero signifies a task to run every tick
-     * @param callback The task to run, with the first argument being the tick delay (in milliseconds)
-     */
-    private record TimedTask(int initialCounter, Consumer<Integer> callback) {}
+public class CodeViewController implements CodeSink {
 
     private static final Logger LOGGER = Logger.getLogger("CodeView");
-    public static final int TICK_DELAY_MS = 100;
-    public static final int NUMBER_LENGTH = 6;
-    public static final int NUMBER_BOUNDS = 1_000_000;
+    public static final int NUMBER_LENGTH = CodeDisplay.NUMBER_LENGTH;
+    public static final int CODES_SHOWN = CodeDisplay.CODES_SHOWN;
+    public static final int PREPARED_ROTATIONS = CodeDisplay.PREPARED_ROTATIONS;
 
     @FXML private Label codeLabel1;
     @FXML private Label codeLabel2;
@@ -50,96 +47,165 @@ public class CodeViewController {
     @FXML private ImageView networkErr;
     @FXML private ImageView restart;
 
-    private final ScheduledExecutorService timedEventExecutor = Executors.newScheduledThreadPool(1, Thread.ofVirtual().factory());
-    private final ExecutorService communicatorExecutor = Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().factory());
-    private final Map<TimedTask, Integer> timedEvents = new HashMap<>();
-    private final SecureRandom random = new SecureRandom();
-    private final AttendanceEndpoint server = new AttendanceEndpoint();
+    private final TaskScheduler scheduler = new TaskScheduler("CodeViewTimer");
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
-    private Instant expiryInstant = Instant.MIN;
-    private Instant generationInstant = Instant.MIN;
+    private CodeDisplay display;
 
-    public void forceCodeGeneration() {
-        this.expiryInstant = Instant.MIN;
-    }
+    private Timeline expiryAnimation; // FX thread only
+    private final char[] digitBuffer = new char[NUMBER_LENGTH]; // FX thread only
 
-    private void executeTimedTasks() {
-
-        // go through each task
-        // - if zero, run it and reset
-        // then decrement
-
-        synchronized (timedEvents) {
-            for (TimedTask task : timedEvents.keySet()) {
-                if (this.timedEvents.get(task) <= 0) {
-                    task.callback.accept(TICK_DELAY_MS);
-                    this.timedEvents.put(task, task.initialCounter);
-                }
-                this.timedEvents.put(task, this.timedEvents.get(task) - 1);
-            }
-        }
-
-    }
-
-    private VerificationCode generateCode(Instant generationInstant) throws InterruptedException {
-        // six digits
-        int code = random.nextInt(NUMBER_BOUNDS);
-        Instant expiry = this.server.sendCodeAndWait(new VerificationCode(code, generationInstant), -1);
-        return new VerificationCode(code, expiry);
+    public void forceCodeGeneration() {
+        if (this.display == null) return;
+        this.display.forceCodeGeneration();
     }
 
-    private void updateExpiryBar(int timeStep) {
+    /**
+     * Run the expiry bar from where it should be now to full at {@code expiry}.
+     * The animation is driven by the FX pulse, so the bar needs no further
+     * updates until the next rotation. FX thread only.
+     */
+    private void animateExpiry(long generation, long expiry) {
 
-        if (this.generationInstant.equals(Instant.MIN) || this.expiryInstant.equals(Instant.MIN)) {
-            return;
+        if (this.expiryAnimation != null) {
+            this.expiryAnimation.stop();
         }
 
-        double expiryTimeDelta = this.generationInstant.until(this.expiryInstant, ChronoUnit.MILLIS);
-        double currentTimeDelta = this.generationInstant.until(Instant.now(), ChronoUnit.MILLIS);
-        double progress = currentTimeDelta / expiryTimeDelta;
+        long now = System.currentTimeMillis();
+        double start = Math.clamp((now - generation) / (double) Math.max(1, expiry - generation), 0d, 1d);
+        this.expiryBar.setProgress(start);
 
-        Platform.runLater(() -> this.expiryBar.setProgress(progress));
+        // key values interpolate linearly from the value at the start of the animation
+        this.expiryAnimation = new Timeline(new KeyFrame(
+                Duration.millis(Math.max(0, expiry - now)),
+                new KeyValue(this.expiryBar.progressProperty(), 1d)
+        ));
+        this.expiryAnimation.play();
 
     }
-    private void updateTime(int unused) {
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String value = formatter.format(Date.from(Instant.now()));
+    /**
+     * @return the start of the next second
+     */
+    private long updateTime(long now) {
+        long second = now / 1000;
+        String value = TIME_FORMAT.format(Instant.ofEpochSecond(second));
         Platform.runLater(() -> this.time.setText(value));
+        return (second + 1) * 1000;
+    }
+    @Override
+    public void show(String streamId, CodeRotator.Rotation rotation) {
+        long[] codes = rotation.codes();
+        long generation = rotation.generation().toEpochMilli();
+        long expiry = rotation.expiry().toEpochMilli();
+        Platform.runLater(() -> {
+            codeLabel1.setText(this.formatCode(codes[0]));
+            codeLabel2.setText(this.formatCode(codes[1]));
+            codeLabel3.setText(this.formatCode(codes[2]));
+            this.animateExpiry(generation, expiry);
+            Startup.firstCodeShown();
+        });
+        LOGGER.log(Level.INFO, "Showing new codes %d, %d and %d".formatted(codes[0], codes[1], codes[2]));
     }
-    private void updateCodes(int unused) {
 
-        if (this.server.getState() != AttendanceEndpoint.ConnectionState.CONNECTED_GOOD) {
-            return;
+    /**
+     * Zero-pad a code to {@link #NUMBER_LENGTH} digits. FX thread only.
+     */
+    private String formatCode(long value) {
+        for (int i = NUMBER_LENGTH - 1; i >= 0; i--) {
+            this.digitBuffer[i] = (char) ('0' + value % 10);
+            value /= 10;
         }
+        return new String(this.digitBuffer);
+    }
 
-        // check if they are expired
-        if (this.expiryInstant.isBefore(Instant.now())) {
-            // regenerate
-            this.generationInstant = Instant.now();
-            VerificationCode code1, code2, code3;
-            // if we get interrupted then give up early
-            try {
-                code1 = this.generateCode(generationInstant);
-                code2 = this.generateCode(generationInstant);
-                code3 = this.generateCode(generationInstant);
-            } catch (InterruptedException e) {
-                return;
-            }
-            this.expiryInstant = code1.time();
-            NumberFormat format = DecimalFormat.getIntegerInstance();
-            format.setMinimumIntegerDigits(NUMBER_LENGTH);
-            format.setGroupingUsed(false);
-            Platform.runLater(() -> codeLabel1.setText(format.format(code1.value())));
-            Platform.runLater(() -> codeLabel2.setText(format.format(code2.value())));
-            Platform.runLater(() -> codeLabel3.setText(format.format(code3.value())));
-            LOGGER.log(Level.INFO, "Generated new codes %d, %d and %d".formatted(code1.value(), code2.value(), code3.value()));
+    /**
+     * Build the view in code, rather than loading {@code code-view.fxml}, and
+     * {@link #initialize()} it. Loading FXML parses XML and reflects over the
+     * controller, which is a noticeable part of startup. The result matches
+     * {@code code-view.fxml}, which stays the layout to edit in Scene Builder;
+     * change both together.
+     * @return the root of the view
+     */
+    public Parent createView() {
+
+        this.restart = icon("256-restart.png", 48);
+        HBox restartBox = new HBox(this.restart);
+        restartBox.setPrefSize(200, 100);
+
+        this.networkGood = icon("32-network-good.png", 32);
+        this.networkWarn = icon("32-network-warn.png", 32);
+        this.networkErr = icon("32-network-err.png", 32);
+
+        HBox bottom = new HBox(restartBox, spacer(), this.networkGood, this.networkWarn, this.networkErr);
+        bottom.setAlignment(Pos.CENTER_LEFT);
+        bottom.setPrefSize(800, 65);
+        bottom.setPadding(new Insets(16));
+        for (ImageView status : new ImageView[] {this.networkGood, this.networkWarn, this.networkErr}) {
+            HBox.setMargin(status, new Insets(0, 8, 0, 0));
         }
 
+        this.expiryBar = new ProgressBar();
+        this.expiryBar.setPrefWidth(240);
+        this.time = new Label("TIME/DATE NOT SET.");
+        this.time.setAlignment(Pos.CENTER_RIGHT);
+        this.time.setPrefSize(181, 25);
+        this.time.setFont(new Font(17));
+
+        HBox top = new HBox(this.expiryBar, spacer(), this.time);
+        top.setAlignment(Pos.CENTER_RIGHT);
+        top.setPrefSize(800, 32);
+        top.setPadding(new Insets(0, 16, 0, 16));
+
+        this.codeLabel1 = codeLabel(Pos.BOTTOM_CENTER, ContentDisplay.BOTTOM);
+        this.codeLabel2 = codeLabel(Pos.CENTER, ContentDisplay.CENTER);
+        this.codeLabel2.setPrefWidth(604);
+        HBox graphic = new HBox();
+        graphic.setPrefSize(200, 100);
+        this.codeLabel2.setGraphic(graphic);
+        this.codeLabel3 = codeLabel(Pos.TOP_CENTER, ContentDisplay.TOP);
+
+        VBox center = new VBox(this.codeLabel1, this.codeLabel2, this.codeLabel3);
+        center.setAlignment(Pos.CENTER);
+        center.setPrefSize(100, 200);
+
+        BorderPane root = new BorderPane(center, top, null, bottom, null);
+        BorderPane.setAlignment(top, Pos.CENTER);
+        BorderPane.setAlignment(center, Pos.CENTER);
+        BorderPane.setAlignment(bottom, Pos.CENTER_RIGHT);
+        root.setMinSize(Region.USE_PREF_SIZE, Region.USE_PREF_SIZE);
+        root.setMaxSize(Region.USE_PREF_SIZE, Region.USE_PREF_SIZE);
+        root.setPrefSize(800, 480);
+
+        this.initialize();
+        return root;
+
+    }
+
+    private static ImageView icon(String asset, double size) {
+        ImageView view = new ImageView(new Image(
+                CodeViewController.class.getResource("assets/" + asset).toExternalForm()));
+        view.setFitWidth(size);
+        view.setFitHeight(size);
+        view.setPickOnBounds(true);
+        view.setPreserveRatio(true);
+        return view;
+    }
+
+    private static Pane spacer() {
+        Pane spacer = new Pane();
+        spacer.setPrefSize(200, 200);
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        return spacer;
     }
 
-    private void registerTask(Consumer<Integer> task, long intervalMs) {
-        TimedTask realTask = new TimedTask((int) Math.floor((double) intervalMs / (double) TICK_DELAY_MS), task);
-        this.timedEvents.put(realTask, realTask.initialCounter);
+    private static Label codeLabel(Pos alignment, ContentDisplay contentDisplay) {
+        Label label = new Label("------");
+        label.setAlignment(alignment);
+        label.setContentDisplay(contentDisplay);
+        label.setStyle("-fx-font-family: monospace;");
+        label.setFont(new Font(70));
+        return label;
     }
 
     @FXML
@@ -149,61 +215,47 @@ public class CodeViewController {
 
         this.expiryBar.setProgress(0d);
 
-        this.registerTask(this::updateExpiryBar, 0L);
-        this.registerTask(this::updateTime, 500L);
-        this.registerTask(this::updateCodes, 0L);
-
-        // set up threads
-
-        timedEventExecutor.scheduleAtFixedRate(
-                this::executeTimedTasks, 0 /* ms initial delay */,
-                TICK_DELAY_MS /* ms, per tick */, TimeUnit.MILLISECONDS
-        );
-
-        this.server.registerConnectionStateListener(state -> {
-            switch (state) {
-                case CONNECTING, CONNECTED_PROBLEM -> {
-                    this.networkGood.setVisible(false);
-                    this.networkWarn.setVisible(true);
-                    this.networkErr.setVisible(false);
-                }
-                case CONNECTED_GOOD -> {
-                    this.networkGood.setVisible(true);
-                    this.networkWarn.setVisible(false);
-                    this.networkErr.setVisible(false);
-                    this.forceCodeGeneration();
-                }
-                case DISCONNECTED -> {
-                    this.networkGood.setVisible(false);
-                    this.networkWarn.setVisible(false);
-                    this.networkErr.setVisible(true);
-                }
-            }
-        });
+        this.scheduler.schedule(this::updateTime, System.currentTimeMillis());
 
-        this.communicatorExecutor.submit(() -> {
-
-            // always run this loop, when JVM terminates then this thread will die (daemon)
-
-            // an infinite loop is kind of the point
-            //noinspection InfiniteLoopStatement
-            while (true) {
-                // second loop: keep trying to connect (even with IOException) until it works
-                while (true) try {
-                    this.server.connect(MAX_TRIES, BaseApplication.getAllowedHosts());
-                    break;
-                } catch (IOException e1) {
-                    LOGGER.log(Level.SEVERE, "Got an IOException, trying again: " + e1.getMessage());
-                }
-
-                try {
-                    this.server.communicate();
-                } catch (IOException e) {
-                    LOGGER.log(Level.SEVERE, "Got an IOException! " + e.getMessage());
-                }
-            }
-        });
+    }
 
+    /**
+     * Start showing codes for a stream. Called once, after the view is loaded.
+     * @param codeStream the stream this display sends its codes on
+     * @param options the options to configure the display with
+     */
+    public void attach(CodeStream codeStream, ClientOptions options) {
+        this.display = options.createDisplay(codeStream, this.scheduler, this);
+        // listeners run on the endpoint's listener executor, the icons may only be touched on the FX thread
+        codeStream.getEndpoint().registerConnectionStateListener(state -> Platform.runLater(() -> this.connectionChanged(state)));
+    }
+
+    /**
+     * Stop updating the view. The display's codes stop rotating with it.
+     */
+    public void shutdown() {
+        this.scheduler.shutdown();
+    }
+
+    @Override
+    public void connectionChanged(AttendanceEndpoint.ConnectionState state) {
+        switch (state) {
+            case CONNECTING, CONNECTED_PROBLEM -> {
+                this.networkGood.setVisible(false);
+                this.networkWarn.setVisible(true);
+                this.networkErr.setVisible(false);
+            }
+            case CONNECTED_GOOD -> {
+                this.networkGood.setVisible(true);
+                this.networkWarn.setVisible(false);
+                this.networkErr.setVisible(false);
+            }
+            case DISCONNECTED -> {
+                this.networkGood.setVisible(false);
+                this.networkWarn.setVisible(false);
+                this.networkErr.setVisible(true);
+            }
+        }
     }
 
 }
@@ -0,0 +1,67 @@
+package com.ed522.bcr2200.attendance;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.ConnectionState;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Prints each rotation and connection change as a line of text, such as
+ * to stdout or a serial console.
+ * <pre>
+ * 2026-10-18 08:20:00 room-1 123456 654321 000042 until 08:20:30
+ * 2026-10-18 08:20:04 connection CONNECTED_PROBLEM
+ * </pre>
+ */
+public final class ConsoleSink implements CodeSink {
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter EXPIRY_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final PrintStream out;
+
+    /**
+     * @param out where to print, flushed after every line
+     */
+    public ConsoleSink(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void show(String streamId, CodeRotator.Rotation rotation) {
+        StringBuilder line = new StringBuilder(64);
+        line.append(TIME_FORMAT.format(Instant.now()));
+        if (streamId != null) line.append(' ').append(streamId);
+        for (long code : rotation.codes()) {
+            line.append(' ');
+            appendCode(line, code);
+        }
+        line.append(" until ").append(EXPIRY_FORMAT.format(rotation.expiry()));
+        this.print(line);
+    }
+
+    @Override
+    public void connectionChanged(ConnectionState state) {
+        this.print(TIME_FORMAT.format(Instant.now()) + " connection " + state);
+    }
+
+    private void print(CharSequence line) {
+        // one call per line, so lines from several displays never interleave
+        this.out.println(line);
+        this.out.flush();
+    }
+
+    /**
+     * Append {@code code} zero-padded to {@link CodeDisplay#NUMBER_LENGTH} digits.
+     */
+    static void appendCode(StringBuilder to, long code) {
+        String digits = Long.toString(code);
+        for (int i = digits.length(); i < CodeDisplay.NUMBER_LENGTH; i++) to.append('0');
+        to.append(digits);
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.ed522.bcr2200.attendance;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.ConnectionState;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a file or device showing the current screen: the connection state,
+ * then one line per display with its codes and expiry.
+ * <br /><br />
+ * A regular file is replaced whole on every change, so a program driving
+ * an e-ink or character display can read it at any time without seeing half
+ * a screen. Anything else, such as a serial port or a virtual console on the
+ * framebuffer ({@code /dev/tty1}), is treated as a terminal: the screen is
+ * cleared with an ANSI escape and redrawn.
+ */
+public final class FileSink implements CodeSink {
+
+    private static final Logger LOGGER = Logger.getLogger("FileSink");
+    private static final DateTimeFormatter EXPIRY_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final String CLEAR_SCREEN = "\u001b[H\u001b[2J";
+
+    private final Path file;
+    private final boolean terminal;
+
+    // guarded by this
+    private final Map<String, String> lines = new LinkedHashMap<>();
+    private ConnectionState state = ConnectionState.DISCONNECTED;
+
+    /**
+     * @param file the file or device to write to
+     */
+    public FileSink(Path file) {
+        this.file = file;
+        this.terminal = Files.exists(file) && !Files.isRegularFile(file);
+    }
+
+    @Override
+    public synchronized void show(String streamId, CodeRotator.Rotation rotation) {
+        StringBuilder line = new StringBuilder(48);
+        if (streamId != null) line.append(streamId).append(": ");
+        for (long code : rotation.codes()) {
+            ConsoleSink.appendCode(line, code);
+            line.append(' ');
+        }
+        line.append("until ").append(EXPIRY_FORMAT.format(rotation.expiry()));
+        this.lines.put(String.valueOf(streamId), line.toString());
+        this.render();
+    }
+
+    @Override
+    public synchronized void connectionChanged(ConnectionState state) {
+        this.state = state;
+        this.render();
+    }
+
+    private void render() {
+        StringBuilder screen = new StringBuilder(256);
+        if (this.terminal) screen.append(CLEAR_SCREEN);
+        screen.append(switch (this.state) {
+            case CONNECTED_GOOD -> "Connected";
+            case CONNECTED_PROBLEM -> "Connection problem";
+            case CONNECTING -> "Connecting";
+            case SEARCHING_FOR_HOSTS -> "Searching for server";
+            case DISCONNECTED -> "Disconnected";
+        }).append('\n');
+        for (String line : this.lines.values()) screen.append(line).append('\n');
+
+        try {
+            if (this.terminal) {
+                Files.writeString(this.file, screen, StandardCharsets.UTF_8, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } else {
+                Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+                Files.writeString(temp, screen, StandardCharsets.UTF_8);
+                Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write to " + this.file + ": " + e.getMessage());
+        }
+    }
+
+}
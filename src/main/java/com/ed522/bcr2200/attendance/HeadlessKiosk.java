@@ -0,0 +1,99 @@
+package com.ed522.bcr2200.attendance;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint;
+
+import java.nio.file.Path;
+
+/**
+ * The client without JavaFX, for small boards driving a console, a
+ * character display or an e-ink panel.
+ * <br /><br />
+ * Started by {@link Launcher} when given {@code --headless}. Takes the same
+ * options as the windowed client, and shows codes on the sink named by
+ * {@code --sink}: {@code stdout} (the default), or {@code file:} and a path
+ * (see {@link FileSink}). Embedders can pass any {@link CodeSink} to
+ * {@link #HeadlessKiosk(ClientOptions, CodeSink)}.
+ * <br /><br />
+ * Nothing here touches JavaFX, so the JavaFX jars need not be installed
+ * when running from the class path. A small heap is plenty, for example
+ * {@code java -Xmx16m -XX:+UseSerialGC -XX:TieredStopAtLevel=1 -cp ...}.
+ */
+public final class HeadlessKiosk {
+
+    private static final String FILE_SINK_PREFIX = "file:";
+    private static final long METRICS_REGISTRATION_DELAY = 10_000; // ms
+
+    private final ClientOptions options;
+    private final CodeSink sink;
+    private final TaskScheduler scheduler = new TaskScheduler("HeadlessTimer");
+
+    /**
+     * @param options the client options
+     * @param sink where every display shows its codes
+     */
+    public HeadlessKiosk(ClientOptions options, CodeSink sink) {
+        this.options = options;
+        this.sink = sink;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ClientOptions options = ClientOptions.parse(args);
+        new HeadlessKiosk(options, createSink(options.getSink())).run();
+    }
+
+    /**
+     * @param sink {@code stdout}, or {@code file:} and a path
+     * @return the sink described
+     */
+    public static CodeSink createSink(String sink) {
+        if (sink.equals("stdout")) return new ConsoleSink(System.out);
+        if (sink.startsWith(FILE_SINK_PREFIX)) return new FileSink(Path.of(sink.substring(FILE_SINK_PREFIX.length())));
+        throw new IllegalArgumentException("Unknown sink " + sink);
+    }
+
+    /**
+     * Connect and show codes until interrupted.
+     * @throws InterruptedException when interrupted, which is the only way this returns
+     */
+    public void run() throws InterruptedException {
+
+        if (this.options.isTrainingRun()) Startup.beginTrainingRun();
+        // notes the first code shown, for the startup time and training runs
+        CodeSink timed = new CodeSink() {
+            @Override
+            public void show(String streamId, CodeRotator.Rotation rotation) {
+                HeadlessKiosk.this.sink.show(streamId, rotation);
+                Startup.firstCodeShown();
+            }
+
+            @Override
+            public void connectionChanged(AttendanceEndpoint.ConnectionState state) {
+                HeadlessKiosk.this.sink.connectionChanged(state);
+            }
+        };
+
+        // every display shares one connection to the server
+        AttendanceEndpoint server = this.options.createEndpoint(this.scheduler);
+        // starting the platform MBean server takes longer than the rest of startup, so wait until settled
+        this.scheduler.schedule(now -> {
+            server.getMetrics().register("client");
+            return TaskScheduler.NEVER;
+        }, System.currentTimeMillis() + METRICS_REGISTRATION_DELAY);
+
+        server.registerConnectionStateListener(timed::connectionChanged);
+        String[] rooms = this.options.getRooms();
+        if (rooms.length == 0) {
+            this.options.createDisplay(server.getDefaultStream(), this.scheduler, timed);
+        } else for (String room : rooms) {
+            this.options.createDisplay(server.openStream(room), this.scheduler, timed);
+        }
+
+        try {
+            server.keepConnected(BaseApplication.MAX_TRIES, this.options.getAllowedHosts());
+        } finally {
+            this.scheduler.shutdown();
+        }
+
+    }
+
+}
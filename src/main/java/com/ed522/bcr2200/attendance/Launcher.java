@@ -10,7 +10,12 @@ import java.util.Arrays;
 
 public class Launcher {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        // decided before anything touches JavaFX, which a headless board may not have
+        if (Arrays.asList(args).contains("--headless")) {
+            HeadlessKiosk.main(args);
+            return;
+        }
         Application.launch(BaseApplication.class, args);
     }
     public static void main1(String... args) throws IOException {
@@ -20,14 +25,14 @@ public class Launcher {
         System.out.println("Now discovering");
         endpoint.connect(0, null);
         System.out.println("Discovered!");
-        Thread thread = new Thread(() -> {
+        // virtual, so it never keeps the JVM alive after the console loop ends
+        Thread.ofVirtual().name("Communicator").start(() -> {
             try {
                 endpoint.communicate();
             } catch (IOException e) {
                 throw new RuntimeException("died", e);
             }
         });
-        thread.start();
         System.out.println("Connected!");
 
         // loop
@@ -0,0 +1,51 @@
+package com.ed522.bcr2200.attendance;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Times how long the client takes to show its first code, and ends training
+ * runs.
+ * <br /><br />
+ * A training run ({@code --training-run}) starts the client as usual and
+ * exits cleanly once the first code is shown, or after
+ * {@link #TRAINING_TIMEOUT} if no server answers, so that
+ * {@code -XX:ArchiveClassesAtExit} can write a class data sharing archive of
+ * everything startup loaded. See the {@code cds} profile in the pom.
+ */
+final class Startup {
+
+    static final long TRAINING_TIMEOUT = 15_000; // ms
+
+    private static final Logger LOGGER = Logger.getLogger("Startup");
+    private static final AtomicBoolean firstCodeShown = new AtomicBoolean(false);
+    private static volatile boolean trainingRun = false;
+
+    private Startup() {}
+
+    /**
+     * Exit once the first code is shown, or after {@link #TRAINING_TIMEOUT}.
+     */
+    static void beginTrainingRun() {
+        trainingRun = true;
+        new TaskScheduler("TrainingRun").schedule(now -> {
+            LOGGER.log(Level.WARNING, "No code shown in " + TRAINING_TIMEOUT + "ms, ending training run anyway");
+            System.exit(0);
+            return TaskScheduler.NEVER;
+        }, System.currentTimeMillis() + TRAINING_TIMEOUT);
+    }
+
+    /**
+     * Note that a code is on screen. Only the first call does anything.
+     */
+    static void firstCodeShown() {
+        if (!firstCodeShown.compareAndSet(false, true)) return;
+        // the JVM's own start time, read only now so measuring costs startup nothing
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        LOGGER.log(Level.INFO, "First code shown " + uptime + "ms after start");
+        if (trainingRun) System.exit(0);
+    }
+
+}
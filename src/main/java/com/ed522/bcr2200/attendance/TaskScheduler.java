@@ -0,0 +1,214 @@
+package com.ed522.bcr2200.attendance;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks at the deadlines they ask for, on a single thread that sleeps
+ * until the earliest one.
+ * <br /><br />
+ * Each run of a task returns when it next wants to run, so a task can follow
+ * the second hand, the code expiry or nothing at all, and an idle display
+ * only wakes when something is due. Other threads can pull a task's next run
+ * earlier with {@link Handle#wakeAt(long)}; such requests go through a
+ * lock-free inbox and never block.
+ * <br /><br />
+ * Tasks speak in wall-clock time, as code expiries come from the server, but
+ * the queue is ordered and waited on with {@link System#nanoTime()}. Each
+ * time is turned into a delay when it is asked for, so a wall clock stepped
+ * afterwards (an NTP correction, or a board setting its clock from the
+ * network) neither stalls nor rushes what is already queued.
+ */
+public final class TaskScheduler {
+
+    /**
+     * A task run by the scheduler.
+     */
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * @param nowMillis the current time, in epoch milliseconds
+         * @return when to run next, in epoch milliseconds, or {@link #NEVER} to wait to be woken
+         */
+        long run(long nowMillis);
+    }
+
+    /**
+     * A scheduled task, used to wake it early.
+     */
+    public final class Handle implements Comparable<Handle> {
+
+        private final Task task;
+        // earliest requested wake-up not yet seen by the scheduler thread, on the scheduler's clock
+        private final AtomicLong requested = new AtomicLong(NEVER);
+        private final AtomicBoolean inInbox = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+        // owned by the scheduler thread, on the scheduler's clock
+        private long deadline = NEVER;
+        private boolean queued = false;
+
+        private Handle(Task task) {
+            this.task = task;
+        }
+
+        /**
+         * Make sure the task runs no later than {@code millis}. Later requests
+         * than the one already pending have no effect.
+         * @param millis the time, in epoch milliseconds
+         */
+        public void wakeAt(long millis) {
+            if (this.cancelled) return;
+            this.requested.accumulateAndGet(TaskScheduler.this.deadlineFor(millis), Math::min);
+            this.post();
+        }
+
+        public void wakeNow() {
+            if (this.cancelled) return;
+            this.requested.accumulateAndGet(TaskScheduler.this.elapsed(), Math::min);
+            this.post();
+        }
+
+        /**
+         * Stop running the task. A run already under way finishes, none start after.
+         */
+        public void cancel() {
+            this.cancelled = true;
+            this.post();
+        }
+
+        private void post() {
+            if (this.inInbox.compareAndSet(false, true)) {
+                TaskScheduler.this.inbox.offer(this);
+                LockSupport.unpark(TaskScheduler.this.thread);
+            }
+        }
+
+        @Override
+        public int compareTo(Handle o) {
+            return Long.compare(this.deadline, o.deadline);
+        }
+
+    }
+
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private static final Logger LOGGER = Logger.getLogger("TaskScheduler");
+    private static final long RETRY_AFTER_FAILURE = 1_000; // ms
+
+    private final ConcurrentLinkedQueue<Handle> inbox = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Handle> queue = new PriorityQueue<>();
+    private final LongSupplier wallClock;
+    private final long origin = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Create a scheduler and start its thread.
+     * @param name the thread's name
+     */
+    public TaskScheduler(String name) {
+        this(name, System::currentTimeMillis);
+    }
+
+    /**
+     * @param wallClock the current time, in epoch milliseconds
+     */
+    TaskScheduler(String name, LongSupplier wallClock) {
+        this.wallClock = wallClock;
+        this.thread = Thread.ofVirtual().name(name).start(this::loop);
+    }
+
+    /**
+     * Add a task.
+     * @param task the task
+     * @param firstRunMillis when to run it first, in epoch milliseconds
+     * @return a handle to wake the task early
+     */
+    public Handle schedule(Task task, long firstRunMillis) {
+        Handle handle = new Handle(task);
+        handle.wakeAt(firstRunMillis);
+        return handle;
+    }
+
+    /**
+     * Stop the scheduler thread. Tasks that are running finish, nothing runs after.
+     */
+    public void shutdown() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+    }
+
+    private void loop() {
+        while (this.running) {
+            this.drainInbox();
+
+            long now = this.elapsed();
+            Handle head = this.queue.peek();
+            if (head != null && head.deadline <= now) {
+                this.queue.poll();
+                head.queued = false;
+                if (head.cancelled) continue;
+                long next;
+                try {
+                    next = this.deadlineFor(head.task.run(this.wallClock.getAsLong()));
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Scheduled task failed", e);
+                    next = this.elapsed() + TimeUnit.MILLISECONDS.toNanos(RETRY_AFTER_FAILURE);
+                }
+                this.enqueue(head, next);
+                continue;
+            }
+
+            if (!this.inbox.isEmpty()) continue;
+            if (head == null) LockSupport.park(this);
+            else LockSupport.parkNanos(this, head.deadline - now);
+        }
+    }
+
+    /**
+     * @return the scheduler's clock, in nanoseconds since it was created
+     */
+    private long elapsed() {
+        return System.nanoTime() - this.origin;
+    }
+
+    /**
+     * @param millis a wall-clock time, in epoch milliseconds, or {@link #NEVER}
+     * @return the same moment on the scheduler's clock, as far as the wall clock can tell now
+     */
+    private long deadlineFor(long millis) {
+        if (millis == NEVER) return NEVER;
+        long now = this.elapsed();
+        long delay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis - this.wallClock.getAsLong()));
+        return delay >= NEVER - now ? NEVER : now + delay;
+    }
+
+    private void drainInbox() {
+        Handle handle;
+        while ((handle = this.inbox.poll()) != null) {
+            // clear the flag first, so a request made while we read is queued again rather than lost
+            handle.inInbox.set(false);
+            if (handle.cancelled) {
+                this.enqueue(handle, NEVER);
+                continue;
+            }
+            long requested = handle.requested.getAndSet(NEVER);
+            if (requested < handle.deadline || !handle.queued) this.enqueue(handle, Math.min(requested, handle.deadline));
+        }
+    }
+
+    private void enqueue(Handle handle, long deadline) {
+        if (handle.queued) this.queue.remove(handle);
+        handle.deadline = deadline;
+        handle.queued = deadline != NEVER;
+        if (handle.queued) this.queue.add(handle);
+    }
+
+}
@@ -1,21 +1,26 @@
 package com.ed522.bcr2200.attendance.io;
 
 import com.ed522.bcr2200.attendance.BaseApplication;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -26,6 +31,8 @@ import java.util.logging.Logger;
 public class AttendanceEndpoint {
 
     public record VerificationCode(long value, Instant time) {}
+    private record PendingCode(CodeStream stream, VerificationCode code, CompletableFuture<Instant> result, int attempts, long sequence) {}
+    private record InFlight(Message.Type target, Message message, CodeStream stream, List<PendingCode> codes) {}
     public enum ConnectionState {
         DISCONNECTED,
         SEARCHING_FOR_HOSTS,
@@ -36,84 +43,182 @@ public class AttendanceEndpoint {
 
     private static final Logger LOGGER = Logger.getLogger("AttendanceEndpoint");
 
-    private static final int STRICT_SO_TIMEOUT = 1_000;
+    private static final int INITIAL_ACK_TIMEOUT = 1_000; // ms, until a round trip has been measured
+    private static final int MIN_ACK_TIMEOUT = 250; // ms
+    private static final int MAX_ACK_TIMEOUT = 8_000; // ms
+    private static final long MIN_HEARTBEAT_INTERVAL = 5_000; // ms
+    private static final long MAX_HEARTBEAT_INTERVAL = 10_000; // ms
+    private static final int HEARTBEAT_TIMEOUT_MULTIPLE = 20;
     private static final int INTERVAL = 5_000; // ms
+    private static final int FIRST_PROBE_INTERVAL = 250; // ms
+    private static final int ACCEPT_POLL_INTERVAL = 250; // ms
+    private static final int HANDSHAKE_TIMEOUT = 2_000; // ms
+    private static final int FAST_RECONNECT_TRIES = 3; // 250 + 500 + 1000ms
+    static final int ATTEMPT_TRIES = 5; // 250 + 500 + 1000 + 2000 + 4000ms, then back off
     private static final int PORT = 5789;
-
-    private final ConcurrentLinkedQueue<VerificationCode> codesToSend = new ConcurrentLinkedQueue<>();
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    static final int CODE_SEND_BUDGET = 2 * MAX_SEND_ATTEMPTS; // across reconnects
+    // encoded codes drained for one send, a replayed journal can hold thousands, well within a binary frame
+    private static final int MAX_SEND_BYTES = 16_384;
+    private static final long RECONCILE_INTERVAL = 30_000; // ms, on average between reports of codes derived under a lease
+    static final long RECONNECT_BASE_DELAY = 500; // ms
+    static final long HANDSHAKE_RETRY_BASE_DELAY = 5_000; // ms
+    static final long RECONNECT_MAX_DELAY = 120_000; // ms
+    private static final long STABLE_CONNECTION_TIME = 60_000; // ms
+    private static final long NO_REQUEST_ID = -1;
+    private static final String BINARY_ENCODING = "binary";
+
+    private final ConcurrentLinkedDeque<PendingCode> codesToSend = new ConcurrentLinkedDeque<>();
+    // sent about every RECONCILE_INTERVAL rather than straight away
+    private final ConcurrentLinkedDeque<PendingCode> codesToReconcile = new ConcurrentLinkedDeque<>();
     private final Lock waitLock = new ReentrantLock();
     private final Condition newMessageCondition = waitLock.newCondition();
-    private final ExecutorService discoveryExecutor =
-            Executors.newSingleThreadExecutor(Thread.ofVirtual().name("CommunicatorDiscoveryThread").factory());
-
-    private final List<Consumer<ConnectionState>> stateChangeCallbacks = new ArrayList<>();
-    private Consumer<Instant> onExpiryReceived = x -> {};
 
-    private ConnectionState connectionState;
+    // copied on write, so registering never races a dispatch
+    private final List<Consumer<ConnectionState>> stateChangeCallbacks = new CopyOnWriteArrayList<>();
+    private final AtomicReference<ConnectionState> connectionState = new AtomicReference<>();
+    private final AtomicLong goodConnections = new AtomicLong();
+    // true while a dispatch is queued or running, so only one runs at a time
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+    private final CodeStream defaultStream = new CodeStream(this, null);
+    private final EndpointMetrics metrics = new EndpointMetrics(this);
+
+    private volatile boolean batchingEnabled = false;
+    private volatile boolean binaryEnabled = true;
+    private volatile int callbackPort = PORT;
+    private volatile Executor listenerExecutor = task -> Thread.ofVirtual().name("ConnectionStateListeners").start(task);
+    private ConnectionState dispatchedState; // only touched by the dispatch holding dispatchScheduled
     private int heartbeatCounter = 0;
-    private Socket socket;
-
-    private void handshake() throws IOException {
+    private long nextRequestId = 0;
+    private volatile List<String> localAddresses;
+    private volatile HostCache hostCache = HostCache.inHomeDirectory();
+    private volatile CodeJournal journal = null;
+    private volatile boolean leaseEnabled = false;
+    private volatile CodeLease lease = null;
+    private Transport transport;
+    private MessageStream stream;
+    // owned by the communicator, reused for every heartbeat and reply
+    private final Message outgoing = new Message();
+    private final Message reply = new Message();
+    private final RttEstimator rtt = new RttEstimator(INITIAL_ACK_TIMEOUT, MIN_ACK_TIMEOUT, MAX_ACK_TIMEOUT);
+    private long lastAckTime; // System.nanoTime() of the last acknowledgement of any kind
+    private long nextReconcileTime; // System.nanoTime()
+    // whether this connection's server has echoed a request id, until then acknowledgements are matched by order
+    private boolean serverEchoesIds;
 
-        LOGGER.log(Level.INFO, "Attempting to connect with host " + socket.getInetAddress().getHostAddress());
+    /**
+     * Greet the server in JSON, offering the binary encoding if enabled.
+     * <br /><br />
+     * The connect message carries {@link BaseApplication#VERSION} and the
+     * encodings the client speaks. A server that replies with
+     * {@code "encoding": "binary"} is spoken to in binary, at that version,
+     * from then on; any other reply, including one from a server that knows
+     * nothing of encodings, keeps the connection in JSON.
+     * <br /><br />
+     * If leases are {@link #setLeaseEnabled(boolean) enabled}, the connect
+     * message also carries {@code "lease": true}, and whatever lease the
+     * server grants replaces the last one. A server that grants none ends
+     * the old lease.
+     * @param json the connection's JSON stream
+     * @return the stream to use for the rest of the connection
+     */
+    private MessageStream handshake(JsonMessageStream json) throws IOException {
 
-        InputStream in = socket.getInputStream();
-        OutputStream out = socket.getOutputStream();
+        LOGGER.log(Level.INFO, "Attempting to connect with host " + transport.getRemoteAddress().getHostAddress());
 
         // compose handshake message
         JsonObject handshakeMessage = new JsonObject();
         handshakeMessage.addProperty("type", "connect");
-        out.write(handshakeMessage.toString().getBytes(StandardCharsets.UTF_8));
+        handshakeMessage.addProperty("version", BaseApplication.VERSION);
+        JsonArray encodings = new JsonArray();
+        if (this.binaryEnabled) encodings.add(BINARY_ENCODING);
+        encodings.add("json");
+        handshakeMessage.add("encodings", encodings);
+        if (this.leaseEnabled) handshakeMessage.addProperty("lease", true);
+        json.write(handshakeMessage);
+        long sentAt = System.nanoTime();
 
         // expect correct response
-        byte[] bytes = new byte[1024];
-        int read = in.read(bytes);
-        if (read < 1) {
-            throw new IOException("Got no data??");
-        }
-        bytes = Arrays.copyOf(bytes, read);
-
-        if (!socket.isConnected()) {
-            this.setState(ConnectionState.DISCONNECTED);
-            LOGGER.log(Level.SEVERE, "Failed to connect with host!");
-        }
-
-        IOException exceptionToThrow = new IOException("Handshake failure - incorrect response given." +
+        IOException exceptionToThrow = new HandshakeException("Handshake failure - incorrect response given." +
                 " Is something else on port " + PORT + "?");
 
-        String dataRaw = new String(bytes, StandardCharsets.UTF_8);
-        JsonElement element;
+        JsonObject handshakeResponse;
         try {
-            element = JsonParser.parseString(dataRaw);
-        } catch (JsonParseException e) {
+            handshakeResponse = json.read(HANDSHAKE_TIMEOUT);
+        } catch (EOFException e) {
+            throw new HandshakeException("Got no data??", e);
+        } catch (IOException e) {
             throw exceptionToThrow;
         }
+        if (handshakeResponse == null) {
+            throw new HandshakeException("Handshake failure - no response within " + HANDSHAKE_TIMEOUT + "ms");
+        }
 
-        if (!element.isJsonObject()) throw exceptionToThrow;
-        JsonObject handshakeResponse = element.getAsJsonObject();
+        if (!transport.isOpen()) {
+            this.setState(ConnectionState.DISCONNECTED);
+            LOGGER.log(Level.SEVERE, "Failed to connect with host!");
+        }
 
         if (
+                handshakeResponse.get("type") == null || handshakeResponse.get("targeting") == null ||
                 !"acknowledge".equals(handshakeResponse.get("type").getAsString()) ||
                 !"connect".equals(handshakeResponse.get("targeting").getAsString())
         ) {
             this.setState(ConnectionState.DISCONNECTED);
             throw exceptionToThrow;
         }
+        long handshakeTime = System.nanoTime() - sentAt;
+        this.sampleRtt(handshakeTime);
+        this.metrics.handshake.record(handshakeTime);
+        this.lastAckTime = System.nanoTime();
+
+        if (this.leaseEnabled) this.lease = readLease(handshakeResponse);
+
+        JsonElement encoding = handshakeResponse.get("encoding");
+        if (this.binaryEnabled && encoding != null && encoding.isJsonPrimitive()
+                && BINARY_ENCODING.equals(encoding.getAsString())) {
+            LOGGER.log(Level.INFO, "Connected, using binary encoding");
+            return new BinaryMessageStream(this.transport, (int) BaseApplication.VERSION);
+        }
         LOGGER.log(Level.INFO, "Connected");
+        return json;
 
     }
 
+    /**
+     * @return the lease granted in a handshake acknowledgement, or null if there is none or it is invalid
+     */
+    private static CodeLease readLease(JsonObject handshakeResponse) {
+        JsonElement lease = handshakeResponse.get("lease");
+        if (lease == null || !lease.isJsonObject()) return null;
+        try {
+            CodeLease granted = CodeLease.fromJson(lease.getAsJsonObject());
+            LOGGER.log(Level.INFO, "Granted a lease until " + Instant.ofEpochSecond(granted.getValidUntil()));
+            return granted;
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Attempt to discover and connect to a willing server.
      * <br /><br />
      * By default, the client will attempt to discover servers using a
      * broadcast. If {@code knownGoodHosts} is non-empty and non-null, it will
-     * try to connect to each of those instead.
+     * try to connect to each of those instead. All hosts are probed at the
+     * same time, from every usable network interface, and the first server to
+     * connect back and complete a handshake is used.
+     * <br /><br />
+     * Before any of that, the last server to complete a handshake (see
+     * {@link #setHostCache(HostCache)}) is asked directly for a short while,
+     * so a reconnect usually skips discovery entirely.
      * <br /><br />
-     * After starting, a thread will be spawned to send generated codes to the
-     * server.
+     * After connecting, call {@link #communicate()} to send generated codes to
+     * the server.
      * <br /><br />
-     * In the case that there are no good hosts, the
+     * In the case that there are no good hosts, the state is set back to
+     * {@link ConnectionState#DISCONNECTED} and an exception is thrown.
      * @param maxTries How many times to try and discover a host before failing (0 for infinite tries). Must be >= 0. Applies per-host if knownGoodHosts is provided.
      * @param knownGoodHosts An array of known good hosts, or null if there are none and discovery should be used.
      * @throws IOException if there is an issue connecting to or communicating with the server.
@@ -125,341 +230,930 @@ public class AttendanceEndpoint {
         if (maxTries < 0)
             throw new IllegalArgumentException("maxTries must be a positive number or 0, got " + maxTries);
 
+        long started = System.nanoTime();
+        HostCache cache = this.hostCache;
+        String lastHost = cache == null ? null : cache.load();
+        if (lastHost != null) {
+            try {
+                connectWithDiscovery(new String[] {lastHost}, FAST_RECONNECT_TRIES);
+                this.metrics.discovery.record(System.nanoTime() - started);
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.INFO, "Last known host " + lastHost + " did not answer, falling back to discovery");
+            }
+        }
+
         if (knownGoodHosts == null || knownGoodHosts.length == 0)
-            connectWithDiscovery("255.255.255.255", maxTries);
-        else {
-            this.setState(ConnectionState.SEARCHING_FOR_HOSTS);
-            boolean couldConnect = false;
-            for (String s : knownGoodHosts) {
-                try {
-                    connectWithDiscovery(s, maxTries);
-                    couldConnect = true;
-                    break;
-                } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, "Could not connect to host " + s + ", trying again");
-                }
+            connectWithDiscovery(new String[] {"255.255.255.255"}, maxTries);
+        else
+            connectWithDiscovery(knownGoodHosts, maxTries);
+        this.metrics.discovery.record(System.nanoTime() - started);
+
+    }
+
+    /**
+     * Keep a connection to a server open until interrupted, reconnecting
+     * whenever it is lost.
+     * <br /><br />
+     * Reconnects back off exponentially, with jitter, up to
+     * {@link #RECONNECT_MAX_DELAY}. A server that answers but fails the
+     * handshake backs off from a longer base than one that cannot be
+     * reached at all. The backoff only resets once a connection has stayed
+     * up for {@link #STABLE_CONNECTION_TIME}, so a server that accepts and
+     * immediately drops clients is not hammered either.
+     * <br /><br />
+     * Each attempt probes a bounded number of times, so the backoff, not the
+     * probes, sets the pace once the server has been gone for a while.
+     * @param maxTries as for {@link #connect(int, String[])}, per reconnect, except that 0 means
+     *                 {@link #ATTEMPT_TRIES}; the reconnects themselves never stop
+     * @param knownGoodHosts as for {@link #connect(int, String[])}
+     * @throws InterruptedException when interrupted, which is the only way this returns
+     */
+    public void keepConnected(int maxTries, String[] knownGoodHosts) throws InterruptedException {
+
+        Backoff backoff = new Backoff(RECONNECT_BASE_DELAY, RECONNECT_MAX_DELAY);
+        Backoff handshakeBackoff = new Backoff(HANDSHAKE_RETRY_BASE_DELAY, RECONNECT_MAX_DELAY);
+
+        while (true) {
+            try {
+                this.attemptConnection(maxTries == 0 ? ATTEMPT_TRIES : maxTries, knownGoodHosts);
+            } catch (HandshakeException e) {
+                long delay = handshakeBackoff.next();
+                LOGGER.log(Level.SEVERE, "Handshake failed, retrying in " + delay + "ms: " + e.getMessage());
+                this.pause(delay);
+                continue;
+            } catch (IOException e) {
+                long delay = backoff.next();
+                LOGGER.log(Level.SEVERE, "Could not connect, retrying in " + delay + "ms: " + e.getMessage());
+                this.pause(delay);
+                continue;
             }
-            if (!couldConnect) {
-                LOGGER.log(Level.SEVERE, "No good host found!");
-                this.setState(ConnectionState.DISCONNECTED);
+            handshakeBackoff.reset();
+
+            long connectedAt = System.nanoTime();
+            // closing the transport is what unblocks a read, an interrupt alone does not
+            try (ConnectionScope connection = new ConnectionScope("Connection")) {
+                connection.register(this.transport);
+                connection.fork("Communicator", this::communicate);
+                Exception failure = connection.join();
+                if (failure != null) LOGGER.log(Level.SEVERE, "Got an IOException! " + failure.getMessage());
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Could not watch the connection: " + e.getMessage());
+            } finally {
+                this.closeTransport();
+            }
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            if (System.nanoTime() - connectedAt >= TimeUnit.MILLISECONDS.toNanos(STABLE_CONNECTION_TIME)) {
+                backoff.reset();
             }
+            // even the first reconnect is jittered, everyone else lost the server at the same moment
+            long delay = backoff.next();
+            LOGGER.log(Level.WARNING, "Connection lost, reconnecting in " + delay + "ms");
+            this.pause(delay);
         }
 
     }
 
+    /**
+     * One attempt of {@link #keepConnected(int, String[])}, separate so tests can make it fail.
+     */
+    void attemptConnection(int maxTries, String[] knownGoodHosts) throws IOException {
+        this.connect(maxTries, knownGoodHosts);
+    }
+
+    /**
+     * Wait between attempts of {@link #keepConnected(int, String[])}, separate so tests can see the delays.
+     */
+    void pause(long delayMillis) throws InterruptedException {
+        Thread.sleep(delayMillis);
+    }
+
+    private void closeTransport() {
+        try {
+            if (this.transport != null) this.transport.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing connection: " + e.getMessage());
+        }
+        this.metrics.disconnections.increment();
+        this.setState(ConnectionState.DISCONNECTED);
+    }
+
     public ConnectionState getState() {
-        return this.connectionState;
+        return this.connectionState.get();
+    }
+
+    /**
+     * Count the times the connection has become
+     * {@link ConnectionState#CONNECTED_GOOD}. Listeners may only see the
+     * latest state, so one that missed a problem and the recovery after it
+     * can still tell from this count changing.
+     * @return the count, already increased by the time {@link #getState()} returns the good state
+     */
+    public long getGoodConnectionCount() {
+        return this.goodConnections.get();
+    }
+
+    /**
+     * @return this endpoint's counters and latency histograms
+     */
+    public EndpointMetrics getMetrics() {
+        return this.metrics;
     }
 
     public void sendCode(VerificationCode code) {
-        this.codesToSend.add(code);
+        this.sendCodeAsync(code);
+    }
+    /**
+     * Queue several codes so that they are sent together.
+     * @param codes the codes to send
+     * @see #sendCodesAsync(List)
+     */
+    public void sendCodes(List<VerificationCode> codes) {
+        this.sendCodesAsync(codes);
+    }
+    /**
+     * Queue a code to be sent to the server.
+     * @param code the code to send
+     * @return a future completed with the code's expiry once the server
+     *         acknowledges it, or exceptionally if it could not be delivered
+     */
+    public CompletableFuture<Instant> sendCodeAsync(VerificationCode code) {
+        return this.sendCodesAsync(List.of(code)).getFirst();
+    }
+    /**
+     * Queue several codes so that they are sent together.
+     * <br /><br />
+     * If batching is enabled, all codes queued before the communicator wakes
+     * up are sent as one {@code "codes"} message per stream and acknowledged
+     * with a single expiry, so a rotation costs one round trip no matter how
+     * many codes are shown. Each message carries a request id, and a code's
+     * future is only completed by the acknowledgement carrying the same id.
+     * @param codes the codes to send
+     * @return one future per code, in the same order, as for {@link #sendCodeAsync(VerificationCode)}
+     */
+    public List<CompletableFuture<Instant>> sendCodesAsync(List<VerificationCode> codes) {
+        return this.enqueue(this.defaultStream, codes, false);
+    }
+    /**
+     * @param deferred whether to send the codes with the next reconciliation, rather than straight away
+     */
+    List<CompletableFuture<Instant>> enqueue(CodeStream stream, List<VerificationCode> codes, boolean deferred) {
+        List<CompletableFuture<Instant>> results = new ArrayList<>(codes.size());
+        List<PendingCode> pending = new ArrayList<>(codes.size());
+        CodeJournal journal = this.journal;
+        long[] sequences = journal == null ? null : journal.append(stream.getId(), codes);
+        for (int i = 0; i < codes.size(); i++) {
+            CompletableFuture<Instant> result = new CompletableFuture<>();
+            results.add(result);
+            pending.add(new PendingCode(stream, codes.get(i), result, 0,
+                    sequences == null ? CodeJournal.NOT_JOURNALED : sequences[i]));
+        }
+        if (deferred) {
+            this.codesToReconcile.addAll(pending);
+            return results;
+        }
+        // add them all at once so the communicator cannot split them
+        this.codesToSend.addAll(pending);
         this.waitLock.lock();
         this.newMessageCondition.signalAll();
         this.waitLock.unlock();
+        return results;
     }
+    /**
+     * Send a code and block until the server acknowledges it.
+     * @param code the code to send
+     * @param timeoutMillis how long to wait, 0 or less to wait forever
+     * @return the code's expiry, or null if it timed out or could not be delivered
+     * @throws InterruptedException if interrupted while waiting
+     */
     public Instant sendCodeAndWait(VerificationCode code, long timeoutMillis) throws InterruptedException {
-        Consumer<Instant> oldAction = this.onExpiryReceived;
-        final Instant[] valueHolder = {null};
-        final Lock lock = new ReentrantLock();
-        final Condition lockCondition = lock.newCondition();
-
-        this.setOnExpiryReceived(i -> {
-            valueHolder[0] = i;
-            lock.lock();
-            lockCondition.signalAll();
-            lock.unlock();
-        });
-        this.sendCode(code);
-        lock.lock();
-
-        do {
-            if (timeoutMillis <= 0) {
-                lockCondition.await();
-                lock.unlock();
-            } else {
-                boolean val = lockCondition.await(timeoutMillis, TimeUnit.MILLISECONDS);
-                lock.unlock();
-                if (!val) return null;
-            }
-        } while (valueHolder[0] == null);
-        this.setOnExpiryReceived(oldAction);
+        CompletableFuture<Instant> result = this.sendCodeAsync(code);
+        try {
+            if (timeoutMillis <= 0) return result.get();
+            else return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
 
-        return valueHolder[0];
+    /**
+     * Open a stream for another logical display sharing this connection.
+     * @param id the id the server uses to tell this display apart, usually its room
+     * @return a new stream
+     */
+    public CodeStream openStream(String id) {
+        return new CodeStream(this, Objects.requireNonNull(id, "stream id must be non null"));
+    }
+    /**
+     * @return the stream used by the endpoint's own send methods, whose codes carry no stream id
+     */
+    public CodeStream getDefaultStream() {
+        return this.defaultStream;
+    }
 
+    /**
+     * Set where the last good host is remembered between connections and
+     * restarts. Defaults to a file in the user's home directory.
+     * @param hostCache the cache, or null to always use discovery
+     */
+    public void setHostCache(HostCache hostCache) {
+        this.hostCache = hostCache;
     }
 
+    /**
+     * Journal every code sent, so that codes the server has not acknowledged
+     * survive a lost connection or a restart. Codes left in the journal are
+     * replayed after every handshake, before anything else is sent. Set
+     * before connecting. Off by default.
+     * @param journal the journal, or null to keep codes in memory only
+     */
+    public void setJournal(CodeJournal journal) {
+        this.journal = journal;
+    }
+    /**
+     * @return the journal codes are kept in, or null if there is none
+     */
+    public CodeJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Ask for a lease in each handshake, so that codes can be derived
+     * locally rather than registered one rotation at a time (see
+     * {@link CodeLease}). Takes effect on the next connection. Off by
+     * default.
+     * @param leaseEnabled whether to ask for leases
+     */
+    public void setLeaseEnabled(boolean leaseEnabled) {
+        this.leaseEnabled = leaseEnabled;
+        if (!leaseEnabled) this.lease = null;
+    }
+    /**
+     * @return the lease granted in the last handshake, which may have run out, or null if there is none
+     */
+    public CodeLease getLease() {
+        return this.lease;
+    }
+
+    /**
+     * Listen for connection state changes. Listeners are called one at a
+     * time on the {@link #setListenerExecutor(Executor) listener executor},
+     * never on the thread talking to the server, and in the order states
+     * were reached. States the endpoint passes through before the last
+     * dispatch finished are skipped, so a listener only ever sees the latest
+     * state, and never the same state twice in a row.
+     * @param callback called with each new state
+     */
     public void registerConnectionStateListener(Consumer<ConnectionState> callback) {
         this.stateChangeCallbacks.add(callback);
     }
+    /**
+     * Set where connection state listeners are called. Defaults to a new
+     * virtual thread for each dispatch. The executor need not run tasks in
+     * order, as only one dispatch is ever outstanding.
+     * @param listenerExecutor runs each dispatch
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = Objects.requireNonNull(listenerExecutor);
+    }
+    /**
+     * Enable or disable batching of queued codes into a single {@code "codes"}
+     * message. When disabled, each code is sent and acknowledged on its own.
+     * @param batchingEnabled whether to batch codes
+     */
+    public void setBatchingEnabled(boolean batchingEnabled) {
+        this.batchingEnabled = batchingEnabled;
+    }
+    /**
+     * Enable or disable offering the binary encoding in the handshake. Takes
+     * effect on the next connection. When disabled, or when the server does
+     * not accept it, messages are sent as JSON.
+     * @param binaryEnabled whether to offer the binary encoding
+     */
+    public void setBinaryEnabled(boolean binaryEnabled) {
+        this.binaryEnabled = binaryEnabled;
+    }
+    /**
+     * Set the port the server is asked to connect back to after discovery.
+     * Takes effect on the next connection. Defaults to the well-known port;
+     * 0 picks a free one each time, so several endpoints can run on one
+     * machine.
+     * @param callbackPort the TCP port to listen on, or 0 for any
+     */
+    public void setCallbackPort(int callbackPort) {
+        if (callbackPort < 0 || callbackPort > 0xFFFF)
+            throw new IllegalArgumentException("Not a port: " + callbackPort);
+        this.callbackPort = callbackPort;
+    }
     public void setOnExpiryReceived(Consumer<Instant> callback) {
-        this.onExpiryReceived = callback;
+        this.defaultStream.setOnExpiryReceived(callback);
     }
 
     private void setState(ConnectionState state) {
-        this.connectionState = state;
-        LOGGER.log(Level.INFO, "Changed state to " + this.getState());
-        // trigger state listeners
-        synchronized (stateChangeCallbacks) {
-            for (Consumer<ConnectionState> c : stateChangeCallbacks) {
-                c.accept(this.connectionState);
+        if (state == ConnectionState.CONNECTED_GOOD && this.connectionState.get() != ConnectionState.CONNECTED_GOOD) {
+            this.goodConnections.incrementAndGet();
+        }
+        this.connectionState.set(state);
+        this.metrics.stateChanged(state);
+        LOGGER.log(Level.INFO, "Changed state to " + state);
+        // a dispatch already outstanding picks the new state up before it finishes
+        if (this.dispatchScheduled.compareAndSet(false, true)) {
+            try {
+                this.listenerExecutor.execute(this::dispatchState);
+            } catch (RejectedExecutionException e) {
+                this.dispatchScheduled.set(false);
+                LOGGER.log(Level.WARNING, "Could not notify connection state listeners: " + e.getMessage());
             }
         }
     }
 
-    public void communicate() throws IOException {
-        this.setState(ConnectionState.CONNECTED_GOOD);
-        this.waitLock.lock();
+    /**
+     * Call the listeners with the latest state, until it stops changing.
+     * Runs on the listener executor while holding {@link #dispatchScheduled}.
+     */
+    private void dispatchState() {
         while (true) {
-            // wait 10s-ish
-            try {
-                // ignoring inspection because we don't really care how we exited
-                // all the condition is is a trigger to run a loop
-                // we check the real condition (are there codes to send
-                //noinspection ResultOfMethodCallIgnored
-                this.newMessageCondition.await(10_000, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                return;
-            }
-
-            // make sure we are still connected
-            if (this.socket.isClosed() || !this.socket.isConnected()) {
-                LOGGER.log(Level.WARNING, "Remote host disconnected");
-                this.setState(ConnectionState.DISCONNECTED);
-                return;
-            }
-
-            // check to see if there are codes to send
-            if (!codesToSend.isEmpty()) {
-                // send
-                VerificationCode code = codesToSend.poll();
-                JsonObject message = new JsonObject();
-                message.addProperty("type", "code");
-                message.addProperty("code", code.value());
-                message.addProperty("generation_time", code.time.getEpochSecond());
-
-                int attempts = 0;
-                while (true) {
-                    attempts++;
-                    this.socket.getOutputStream().write(message.toString().getBytes(StandardCharsets.UTF_8));
-
-                    // wait for acknowledgement
-                    int oldTimeout = this.socket.getSoTimeout();
-                    this.socket.setSoTimeout(STRICT_SO_TIMEOUT /* ms */);
-
-                    byte[] data = new byte[1024];
-                    int read = this.socket.getInputStream().read(data);
-                    if (read == -1) {
-                        continue; // did not respond within timeout
+            ConnectionState state = this.connectionState.get();
+            if (state != this.dispatchedState) {
+                this.dispatchedState = state;
+                for (Consumer<ConnectionState> c : this.stateChangeCallbacks) {
+                    try {
+                        c.accept(state);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Connection state listener failed", e);
                     }
-                    data = Arrays.copyOf(data, read);
+                }
+            }
+            this.dispatchScheduled.set(false);
+            // changed while the listeners ran, and setState saw this dispatch still outstanding
+            if (this.connectionState.get() == this.dispatchedState
+                    || !this.dispatchScheduled.compareAndSet(false, true)) return;
+        }
+    }
 
-                    JsonObject response = checkAcknowledgement(data, "code");
-                    this.socket.setSoTimeout(oldTimeout);
+    /**
+     * Exchange messages with the connected server until the connection is
+     * lost or the thread is interrupted.
+     * <br /><br />
+     * Queued codes are sent as soon as they arrive. A heartbeat is only sent
+     * once nothing at all has been acknowledged for the
+     * {@link #heartbeatInterval() heartbeat interval}, so while codes are
+     * flowing their acknowledgements prove the link is alive instead.
+     * <br /><br />
+     * How long to wait for each acknowledgement comes from the measured round
+     * trip time (see {@link RttEstimator}). The first unanswered attempt marks
+     * the connection {@link ConnectionState#CONNECTED_PROBLEM}, each retry
+     * waits twice as long, and the connection is dropped after
+     * {@link #MAX_SEND_ATTEMPTS}. Any acknowledgement brings it back to
+     * {@link ConnectionState#CONNECTED_GOOD}.
+     * @throws IOException if the remote sent something invalid
+     */
+    public void communicate() throws IOException {
+        this.setState(ConnectionState.CONNECTED_GOOD);
+        // codes derived while disconnected are reported straight away
+        this.nextReconcileTime = System.nanoTime();
+        this.serverEchoesIds = false;
+        this.waitLock.lock();
+        try {
+            while (true) {
+                this.reconcileIfDue();
+                // wait until a heartbeat or reconciliation is due, unless codes were queued while we were busy
+                long untilHeartbeat = this.heartbeatInterval() - (System.nanoTime() - this.lastAckTime);
+                if (!codesToReconcile.isEmpty()) untilHeartbeat = Math.min(untilHeartbeat,
+                        this.nextReconcileTime - System.nanoTime());
+                if (codesToSend.isEmpty() && untilHeartbeat > 0) try {
+                    // ignoring inspection because we don't really care how we exited
+                    // all the condition is is a trigger to run a loop
+                    // we check the real condition (are there codes to send
+                    //noinspection ResultOfMethodCallIgnored
+                    this.newMessageCondition.await(untilHeartbeat, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
 
-                    // trigger expiry callback
-                    this.onExpiryReceived.accept(Instant.ofEpochSecond(response.get("valid_to").getAsLong()));
+                // make sure we are still connected
+                if (!this.transport.isOpen()) {
+                    LOGGER.log(Level.WARNING, "Remote host disconnected");
+                    this.setState(ConnectionState.DISCONNECTED);
+                    return;
+                }
 
-                    if (attempts >= 3) {
+                // check to see if there are codes to send
+                if (!codesToSend.isEmpty()) {
+                    if (!this.sendQueuedCodes()) {
                         this.setState(ConnectionState.DISCONNECTED);
                         LOGGER.log(Level.SEVERE, "Lost connection with remote");
                         return;
                     }
-                    // good
-                    break;
-
-                }
-
-            } else {
-
-                // we just hit the timeout
-                // send heartbeat (preincremented)
-                JsonObject message = new JsonObject();
-                message.addProperty("type", "heartbeat");
-                message.addProperty("counter", this.heartbeatCounter);
-
-                // try up to 3 times
-                int attempts = 0;
-                while (true) {
-                    attempts++;
-                    this.socket.getOutputStream().write(message.toString().getBytes(StandardCharsets.UTF_8));
-
-                    // wait for acknowledgement
-                    int oldTimeout = this.socket.getSoTimeout();
-                    this.socket.setSoTimeout(STRICT_SO_TIMEOUT /* ms */);
-
-                    byte[] data = new byte[1024];
-                    int read = socket.getInputStream().read(data);
-                    if (read < 1) {
-                        this.setState(ConnectionState.CONNECTED_PROBLEM);
-                        continue;
+                } else if (System.nanoTime() - this.lastAckTime >= this.heartbeatInterval()) {
+
+                    // nothing has been heard for a while
+                    // send heartbeat (preincremented)
+                    Message message = this.outgoing.clear();
+                    message.type = Message.Type.HEARTBEAT;
+                    message.counter = this.heartbeatCounter;
+
+                    // try up to 3 times
+                    boolean answered = false;
+                    for (int attempts = 0; attempts < MAX_SEND_ATTEMPTS && !answered; attempts++) {
+                        this.stream.write(message);
+                        long sentAt = System.nanoTime();
+                        this.metrics.heartbeatsSent.increment();
+                        if (attempts > 0) this.metrics.retries.increment();
+
+                        // wait for acknowledgement
+                        answered = this.readAcknowledgement(Message.Type.HEARTBEAT, NO_REQUEST_ID, this.rtt.timeout());
+                        if (!answered) {
+                            this.rtt.timedOut();
+                            this.setState(ConnectionState.CONNECTED_PROBLEM);
+                        } else if (attempts == 0) {
+                            // a reply to a retry could be to any attempt, only time the first
+                            long roundTrip = System.nanoTime() - sentAt;
+                            this.sampleRtt(roundTrip);
+                            this.metrics.heartbeatRoundTrip.record(roundTrip);
+                        }
                     }
-                    data = Arrays.copyOf(data, read);
-
-                    JsonObject response = checkAcknowledgement(data, "heartbeat");
-                    if (response.get("counter") == null) {
+                    if (!answered) {
+                        this.setState(ConnectionState.DISCONNECTED);
+                        LOGGER.log(Level.SEVERE, "Lost connection with remote");
+                        return;
+                    }
+                    this.acknowledged();
+                    if (this.reply.counter == Message.ABSENT) {
                         this.setState(ConnectionState.DISCONNECTED);
                         throw new IOException("Invalid response to heartbeat");
                     }
-                    if (this.heartbeatCounter != response.get("counter").getAsInt()) {
+                    if (this.heartbeatCounter != this.reply.counter) {
                         // correct counter
                         // made a method
                         correctHeartbeat(this.heartbeatCounter);
                     }
-                    this.socket.setSoTimeout(oldTimeout);
+                    heartbeatCounter++;
 
-                    if (attempts >= 3) {
-                        this.setState(ConnectionState.DISCONNECTED);
-                        LOGGER.log(Level.SEVERE, "Lost connection with remote");
-                        return;
-                    }
+                }
 
-                    // success
-                    break;
+            }
+        } finally {
+            // released, or codes queued while disconnected would wait for the next connection
+            this.waitLock.unlock();
+        }
+    }
+
+    /**
+     * Move codes waiting for reconciliation onto the send queue, if it is
+     * time to, so the server hears of every code derived since in one batch
+     * per stream.
+     * <br /><br />
+     * The time between reconciliations is drawn at random from half to one
+     * and a half {@link #RECONCILE_INTERVAL}s, so kiosks that reconnected
+     * together drift apart instead of reporting in the same instant.
+     */
+    private void reconcileIfDue() {
+        if (this.codesToReconcile.isEmpty()) return;
+        long now = System.nanoTime();
+        if (now - this.nextReconcileTime < 0) return;
+        long interval = TimeUnit.MILLISECONDS.toNanos(RECONCILE_INTERVAL);
+        this.nextReconcileTime = now + interval / 2 + ThreadLocalRandom.current().nextLong(interval);
+        PendingCode next;
+        while ((next = this.codesToReconcile.poll()) != null) this.codesToSend.add(next);
+    }
+
+    /**
+     * How long the link may be quiet before a heartbeat is sent. A multiple
+     * of the acknowledgement timeout, so fast links notice a failure sooner
+     * and slow ones are not kept busy, within fixed bounds.
+     * @return the interval, in nanoseconds
+     */
+    private long heartbeatInterval() {
+        long interval = Math.clamp((long) HEARTBEAT_TIMEOUT_MULTIPLE * this.rtt.timeout(),
+                MIN_HEARTBEAT_INTERVAL, MAX_HEARTBEAT_INTERVAL);
+        return TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    private void sampleRtt(long nanos) {
+        this.rtt.sample(nanos);
+        this.metrics.rttUpdated(this.rtt.smoothedMillis());
+    }
+
+    /**
+     * Note that the server answered, recovering from {@link ConnectionState#CONNECTED_PROBLEM}.
+     */
+    private void acknowledged() {
+        this.lastAckTime = System.nanoTime();
+        if (this.connectionState.get() == ConnectionState.CONNECTED_PROBLEM) {
+            // answered on a retry, the link has recovered
+            this.setState(ConnectionState.CONNECTED_GOOD);
+        }
+    }
+
+    /**
+     * Send everything in the queue and wait for it to be acknowledged.
+     * <br /><br />
+     * Queued codes are grouped by stream into one message each. All of the
+     * messages are written before any acknowledgement is awaited, so several
+     * displays rotating together still cost a single round trip.
+     * <br /><br />
+     * That needs the server to echo request ids. Until it has, on this
+     * connection, acknowledgements can only be matched to requests by their
+     * order, so only one message is sent at a time, and it is not retried: a
+     * late acknowledgement to the first attempt would be taken for the
+     * acknowledgement to the next request. The connection is dropped instead,
+     * and stale acknowledgements with it.
+     * @return false if some codes were never acknowledged
+     * @throws IOException if the connection failed
+     */
+    private boolean sendQueuedCodes() throws IOException {
+        // drain everything queued so far, so codes for one rotation share a round trip
+        Map<CodeStream, List<PendingCode>> byStream = new LinkedHashMap<>();
+        PendingCode next;
+        int maxCodes = MAX_SEND_BYTES / this.stream.maxEncodedCodeSize();
+        int drained = 0;
+        while ((next = codesToSend.poll()) != null) {
+            byStream.computeIfAbsent(next.stream(), s -> new ArrayList<>()).add(next);
+            if (!this.batchingEnabled || ++drained == maxCodes) break;
+        }
+
+        if (!this.serverEchoesIds && byStream.size() > 1) {
+            // one request in flight, the other streams wait their turn at the front of the queue
+            List<List<PendingCode>> later = new ArrayList<>(byStream.values());
+            for (int i = later.size() - 1; i > 0; i--) {
+                byStream.remove(later.get(i).getFirst().stream());
+                List<PendingCode> batch = later.get(i);
+                for (int j = batch.size() - 1; j >= 0; j--) this.codesToSend.addFirst(batch.get(j));
+            }
+        }
+
+        Map<Long, InFlight> inFlight = new LinkedHashMap<>();
+        for (Map.Entry<CodeStream, List<PendingCode>> entry : byStream.entrySet()) {
+            long id = this.nextRequestId++;
+            List<PendingCode> batch = entry.getValue();
+            inFlight.put(id, new InFlight(
+                    batch.size() == 1 ? Message.Type.CODE : Message.Type.CODES,
+                    composeCodeMessage(batch, entry.getKey().getId(), id),
+                    entry.getKey(), batch
+            ));
+        }
+
+        int attempts = 0;
+        long firstSentAt = 0;
+        try {
+            while (attempts < MAX_SEND_ATTEMPTS && !inFlight.isEmpty()) {
+                attempts++;
+                for (InFlight request : inFlight.values()) {
+                    this.stream.write(request.message());
+                    if (attempts == 1) this.metrics.codesSent.add(request.codes().size());
+                    else this.metrics.retries.increment();
+                }
+                long sentAt = System.nanoTime();
+                if (attempts == 1) firstSentAt = sentAt;
+                int outstanding = inFlight.size();
+                this.readCodeAcknowledgements(inFlight, this.rtt.timeout(), firstSentAt);
+
+                if (inFlight.size() < outstanding) {
+                    // a reply to a retry could be to any attempt, only time the first
+                    if (attempts == 1) this.sampleRtt(System.nanoTime() - sentAt);
+                    this.lastAckTime = System.nanoTime();
+                }
+                if (inFlight.isEmpty()) {
+                    this.acknowledged();
+                } else {
+                    this.rtt.timedOut();
+                    // a retry's acknowledgement could not be told from the first attempt's
+                    if (!this.serverEchoesIds) break;
+                    this.setState(ConnectionState.CONNECTED_PROBLEM);
+                }
+            }
+        } catch (IOException e) {
+            this.requeueOrFail(inFlight.values(), attempts, e);
+            throw e;
+        }
+
+        if (inFlight.isEmpty()) return true;
+        this.requeueOrFail(inFlight.values(), attempts,
+                new IOException("No acknowledgement after " + CODE_SEND_BUDGET + " attempts"));
+        return false;
+    }
+
+    /**
+     * Put unacknowledged codes back at the front of the queue for the next
+     * connection, in their original order, unless they have used up their
+     * {@link #CODE_SEND_BUDGET}, in which case they are failed. Failed codes
+     * stay in the journal, if there is one, to be replayed after the next
+     * handshake.
+     */
+    private void requeueOrFail(Collection<InFlight> requests, int attempts, IOException cause) {
+        List<PendingCode> unacknowledged = new ArrayList<>();
+        for (InFlight request : requests) unacknowledged.addAll(request.codes());
+        for (int i = unacknowledged.size() - 1; i >= 0; i--) {
+            PendingCode p = unacknowledged.get(i);
+            if (p.attempts() + attempts >= CODE_SEND_BUDGET) {
+                this.metrics.codesFailed.increment();
+                CodeJournal journal = this.journal;
+                if (journal != null) journal.park(p.sequence());
+                p.result().completeExceptionally(cause);
+            } else {
+                this.codesToSend.addFirst(new PendingCode(p.stream(), p.code(), p.result(), p.attempts() + attempts, p.sequence()));
+            }
+        }
+    }
+
+    /**
+     * Read acknowledgements until every request in {@code inFlight} has one,
+     * or the timeout passes. Acknowledged requests are removed from the map
+     * and their codes completed.
+     * @param firstSentAt when the requests were first written, to time them including retries
+     */
+    private void readCodeAcknowledgements(Map<Long, InFlight> inFlight, int timeoutMillis, long firstSentAt) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!inFlight.isEmpty()) {
+            int remaining = (int) TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) return;
+            Message response = this.reply;
+            if (!this.stream.read(response, remaining)) return;
+
+            if (response.type == Message.Type.ACKNOWLEDGE && response.targeting == Message.Type.HEARTBEAT) {
+                // a late reply to a heartbeat that was retried
+                LOGGER.log(Level.FINE, "Discarding stale acknowledgement " + response);
+                continue;
+            }
+
+            long id;
+            if (response.id != Message.ABSENT) {
+                this.serverEchoesIds = true;
+                id = response.id;
+                if (!inFlight.containsKey(id)) {
+                    // a late reply to a request that was already retried
+                    LOGGER.log(Level.FINE, "Discarding stale acknowledgement " + response);
+                    continue;
                 }
-                heartbeatCounter++;
+            } else if (this.serverEchoesIds) {
+                LOGGER.log(Level.FINE, "Discarding acknowledgement without an id " + response);
+                continue;
+            } else {
+                // servers that do not echo ids answer in order, and only one request is in flight
+                id = inFlight.keySet().iterator().next();
+            }
 
+            InFlight request = inFlight.get(id);
+            checkAcknowledgement(response, request.target());
+            if (response.validTo == Message.ABSENT) {
+                this.setState(ConnectionState.DISCONNECTED);
+                throw new IOException("Invalid response to code (no valid_to)");
+            }
+            inFlight.remove(id);
+            this.metrics.codeAcknowledgement.record(System.nanoTime() - firstSentAt);
+            this.metrics.codesAcknowledged.add(request.codes().size());
+
+            CodeJournal journal = this.journal;
+            if (journal != null) {
+                long[] sequences = new long[request.codes().size()];
+                for (int i = 0; i < sequences.length; i++) sequences[i] = request.codes().get(i).sequence();
+                journal.acknowledge(sequences);
             }
 
+            // one expiry for the whole batch
+            Instant expiry = Instant.ofEpochSecond(response.validTo);
+            for (PendingCode p : request.codes()) p.result().complete(expiry);
+            request.stream().expiryReceived(expiry);
         }
     }
 
-    private JsonObject checkAcknowledgement(byte[] data, String type) throws IOException {
-        JsonElement responseRaw = JsonParser.parseString(
-                new String(data, StandardCharsets.UTF_8)
-        );
-        if (!responseRaw.isJsonObject()) {
-            this.setState(ConnectionState.DISCONNECTED);
-            throw new IOException("Remote sent invalid response to code (not a JsonObject)");
+    private static Message composeCodeMessage(List<PendingCode> batch, String streamId, long id) {
+        Message message = new Message();
+        message.type = batch.size() == 1 ? Message.Type.CODE : Message.Type.CODES;
+        message.id = id;
+        for (PendingCode p : batch) {
+            message.addCode(p.code().value(), p.code().time().getEpochSecond());
+        }
+        // only tag streams other than the default, so single-display servers see the same messages
+        message.stream = streamId;
+        return message;
+    }
+
+    /**
+     * Read the acknowledgement to a request.
+     * <br /><br />
+     * Acknowledgements carrying a different request id are late replies to
+     * requests that were already retried, and are skipped.
+     * @param type the message type being acknowledged
+     * @param id the request id, or {@link #NO_REQUEST_ID} for untagged messages
+     * @param timeoutMillis how long to wait in total
+     * @return true if the acknowledgement arrived in time, and was read into {@link #reply}
+     * @throws IOException if the remote sent something other than the expected acknowledgement
+     */
+    private boolean readAcknowledgement(Message.Type type, long id, int timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            int remaining = (int) TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) return false;
+            Message response = this.reply;
+            if (!this.stream.read(response, remaining)) return false;
+            if (response.id != Message.ABSENT && response.id != id) {
+                LOGGER.log(Level.FINE, "Discarding stale acknowledgement " + response);
+                continue;
+            }
+            checkAcknowledgement(response, type);
+            return true;
         }
+    }
 
-        // try to parse
-        JsonObject response = responseRaw.getAsJsonObject();
-        if (response.get("type") == null || response.get("targeting") == null ||
-                !response.get("type").getAsString().equals("acknowledge") ||
-                !response.get("targeting").getAsString().equals(type)) {
+    private void checkAcknowledgement(Message response, Message.Type type) throws IOException {
+        if (response.type != Message.Type.ACKNOWLEDGE || response.targeting != type) {
             this.setState(ConnectionState.DISCONNECTED);
             throw new IOException("Remote sent invalid response to code (not an acknowledge/wrong target)");
         }
-        return response;
     }
 
     private void correctHeartbeat(int counter) throws IOException {
-        JsonObject message = new JsonObject();
-        message.addProperty("type", "heartbeat_error");
-        message.addProperty("counter", counter);
-        this.socket.getOutputStream().write(message.toString().getBytes(StandardCharsets.UTF_8));
+        Message message = this.outgoing.clear();
+        message.type = Message.Type.HEARTBEAT_ERROR;
+        message.counter = counter;
+        this.stream.write(message);
+        this.metrics.heartbeatErrors.increment();
 
         // expect right value
-        byte[] data = new byte[1024];
-        int read = this.socket.getInputStream().read(data);
-        data = Arrays.copyOf(data, read);
-        checkAcknowledgement(data, "heartbeat_error");
+        if (!this.stream.read(this.reply, this.rtt.timeout())) {
+            this.setState(ConnectionState.DISCONNECTED);
+            throw new IOException("Remote did not acknowledge heartbeat correction");
+        }
+        checkAcknowledgement(this.reply, Message.Type.HEARTBEAT_ERROR);
     }
 
-    private void connectWithDiscovery(String host, int maxTries) throws IOException {
-
-        this.setState(ConnectionState.SEARCHING_FOR_HOSTS);
-
-        // set up to accept any connections
-        Future<Socket> future = discoveryExecutor.submit(() -> {
-            try (ServerSocket s = new ServerSocket(PORT)) {
-                return s.accept();
-            }
-        });
+    /**
+     * Queue the journal's parked codes ahead of everything else, oldest
+     * first, so the server catches up in one batch per stream.
+     */
+    private void replayJournal() {
+        CodeJournal journal = this.journal;
+        if (journal == null) return;
+        List<CodeJournal.Entry> parked = journal.takeParked();
+        if (parked.isEmpty()) return;
+        LOGGER.log(Level.INFO, "Replaying " + parked.size() + " unacknowledged codes from the journal");
+        this.metrics.codesReplayed.add(parked.size());
+
+        // one stream per id, so each room's codes go out together
+        Map<String, CodeStream> streams = new HashMap<>();
+        streams.put(null, this.defaultStream);
+        for (int i = parked.size() - 1; i >= 0; i--) {
+            CodeJournal.Entry entry = parked.get(i);
+            CodeStream stream = streams.computeIfAbsent(entry.stream(), id -> new CodeStream(this, id));
+            VerificationCode code = new VerificationCode(entry.value(), Instant.ofEpochSecond(entry.time()));
+            // nobody waits on a replayed code, the display that showed it has moved on
+            this.codesToSend.addFirst(new PendingCode(stream, code, new CompletableFuture<>(), 0, entry.sequence()));
+        }
+    }
 
-        DatagramSocket datagramSocket = new DatagramSocket();
+    private void connectWithDiscovery(String[] hosts, int maxTries) throws IOException {
 
-        // broadcast to find any available servers
-        datagramSocket.setOption(StandardSocketOptions.SO_BROADCAST, true);
-        datagramSocket.connect(new InetSocketAddress(host, PORT));
+        this.setState(ConnectionState.SEARCHING_FOR_HOSTS);
 
-        // look for hosts
-        int tries = 0;
+        List<String> localAddresses = this.getLocalAddresses();
 
-        List<NetworkInterface> interfaces = new ArrayList<>();
-        NetworkInterface.getNetworkInterfaces().asIterator().forEachRemaining(interfaces::add);
-        String hostToUse = null;
-
-        // go through each interface
-        // only look for non-loopback interfaces
-        // if a good interface is found, look for all addresses
-        // in those addresses, if one is non-loopback, assign it but keep looking
-        // if that address is also not link-local, use it and break out of both loops
-        mainLoop:
-        for (NetworkInterface n : interfaces) {
+        // set up to accept any connections, then probe every host from every interface at once
+        // leaving the scope, however we leave, stops every probe and closes the listener
+        try (ConnectionScope discovery = new ConnectionScope("Discovery")) {
 
-            if (!n.isLoopback() && n.isUp()) {
+            TransportListener listener = discovery.register(new TransportListener(this.callbackPort));
+            int port = listener.getLocalPort();
+            for (String host : hosts) {
+                for (String localAddress : localAddresses) {
+                    discovery.fork(host + " from " + localAddress, () -> probe(host, localAddress, port, maxTries));
+                }
+            }
 
-                List<InetAddress> addresses = new ArrayList<>();
-                n.getInetAddresses().asIterator().forEachRemaining(addresses::add);
-                for (InetAddress address : addresses) {
-                    if (!address.isLoopbackAddress() && hostToUse == null) {
-                        hostToUse = address.getHostAddress();
-                    }
-                    if (!address.isLinkLocalAddress()) {
-                        hostToUse = address.getHostAddress();
-                        break mainLoop;
+            while (true) {
+                Transport candidate = listener.accept(ACCEPT_POLL_INTERVAL);
+                if (candidate == null) {
+                    if (discovery.isIdle()) {
+                        // every probe gave up, the interfaces may have changed since we looked
+                        this.localAddresses = null;
+                        this.setState(ConnectionState.DISCONNECTED);
+                        throw new IOException("No host found (%d attempts per host)".formatted(maxTries));
                     }
+                    continue;
                 }
 
+                // take the first server that completes a handshake
+                try {
+                    this.connectTo(candidate);
+                    return;
+                } catch (HandshakeException e) {
+                    // the server answered and refused, asking it again at once rarely helps
+                    this.setState(ConnectionState.DISCONNECTED);
+                    throw e;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not connect to host " +
+                            candidate.getRemoteAddress().getHostAddress() + ", trying again: " + e.getMessage());
+                    this.setState(ConnectionState.SEARCHING_FOR_HOSTS);
+                }
             }
 
         }
 
-        if (hostToUse == null) throw new IOException("No valid interface found!");
+    }
+
+    /**
+     * Make {@code candidate} the connection, if the server on it completes a handshake.
+     * @throws IOException if it does not, {@code candidate} is then closed
+     */
+    void connectTo(Transport candidate) throws IOException {
+        this.setState(ConnectionState.CONNECTING);
+        if (this.transport != null) this.transport.close();
+        this.transport = candidate;
+        try {
+            this.stream = handshake(new JsonMessageStream(candidate));
+        } catch (IOException e) {
+            candidate.close();
+            throw e;
+        }
+        this.metrics.connections.increment();
+        this.replayJournal();
+        HostCache cache = this.hostCache;
+        if (cache != null) cache.store(candidate.getRemoteAddress().getHostAddress());
+    }
+
+    /**
+     * Repeatedly send a discovery message to {@code host}, asking it to
+     * connect back to {@code localAddress} on {@code port}. The first few probes are sent in
+     * quick succession, then the interval grows to {@link #INTERVAL}.
+     */
+    private static void probe(String host, String localAddress, int port, int maxTries) throws IOException {
 
         JsonObject object = new JsonObject();
         object.addProperty("app", "attendance");
         object.addProperty("type", "discovery");
         object.addProperty("version", BaseApplication.VERSION);
-        object.addProperty("host", hostToUse);
+        object.addProperty("host", localAddress);
+        object.addProperty("port", port);
 
         byte[] message = object.toString().getBytes(StandardCharsets.UTF_8);
 
-        while ((tries < maxTries || maxTries == 0)) {
-            tries++;
+        try (DatagramSocket datagramSocket = new DatagramSocket()) {
 
-            DatagramPacket packet = new DatagramPacket(message, message.length);
-            datagramSocket.send(packet);
-            try {
-                // if the server connects (future call does not throw) break
-                future.get(INTERVAL, TimeUnit.MILLISECONDS);
-                // here it must be done
-                break;
-            } catch (InterruptedException e) {
-                throw new IOException("No host found (interrupted)");
-            } catch (ExecutionException e) {
-                if (e.getCause() instanceof IOException) {
-                    throw (IOException) e.getCause();
-                } else throw new IllegalStateException("Unreachable state: unexpected exception", e);
-            } catch (TimeoutException e) {
-                // if the server does not connect, try again
-                // pass
+            // broadcast to find any available servers
+            datagramSocket.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            datagramSocket.connect(new InetSocketAddress(host, PORT));
+
+            long wait = FIRST_PROBE_INTERVAL;
+            for (int tries = 0; tries < maxTries || maxTries == 0; tries++) {
+                datagramSocket.send(new DatagramPacket(message, message.length));
+                Thread.sleep(wait);
+                wait = Math.min(wait * 2, INTERVAL);
             }
+
+        } catch (InterruptedException e) {
+            // another probe found a server
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not probe host " + host + ": " + e.getMessage());
+            throw e;
         }
 
-        datagramSocket.close();
+    }
 
-        // we have a connection, or we ran out of tries
-        if (!future.isDone()) {
-            this.setState(ConnectionState.DISCONNECTED);
-            // ran out of tries
-            throw new IOException("No host found (%d attempts)".formatted(tries));
-        }
+    /**
+     * Find the address to advertise on each usable interface. The result is
+     * cached until a discovery fails.
+     * <br /><br />
+     * Loopback and down interfaces are skipped. On each remaining interface a
+     * non-link-local address is preferred, but a link-local one is used if it
+     * is all there is.
+     */
+    private List<String> getLocalAddresses() throws IOException {
+
+        List<String> cached = this.localAddresses;
+        if (cached != null) return cached;
+
+        List<NetworkInterface> interfaces = new ArrayList<>();
+        NetworkInterface.getNetworkInterfaces().asIterator().forEachRemaining(interfaces::add);
+        List<String> result = new ArrayList<>();
+
+        for (NetworkInterface n : interfaces) {
+
+            if (!n.isLoopback() && n.isUp()) {
+
+                String hostToUse = null;
+                List<InetAddress> addresses = new ArrayList<>();
+                n.getInetAddresses().asIterator().forEachRemaining(addresses::add);
+                for (InetAddress address : addresses) {
+                    if (!address.isLoopbackAddress() && hostToUse == null) {
+                        hostToUse = address.getHostAddress();
+                    }
+                    if (!address.isLinkLocalAddress()) {
+                        hostToUse = address.getHostAddress();
+                        break;
+                    }
+                }
+                if (hostToUse != null) result.add(hostToUse);
+
+            }
 
-        // otherwise get the socket
-        try {
-            this.setState(ConnectionState.CONNECTING);
-            socket = future.get();
-        } catch (InterruptedException e) {
-            this.setState(ConnectionState.DISCONNECTED);
-            Thread.currentThread().interrupt();
-        } catch (ExecutionException e) {
-            this.setState(ConnectionState.DISCONNECTED);
-            throw new IOException("Error occurred while connecting to server", e);
         }
 
-        handshake();
+        if (result.isEmpty()) throw new IOException("No valid interface found!");
+        this.localAddresses = List.copyOf(result);
+        return this.localAddresses;
 
     }
 
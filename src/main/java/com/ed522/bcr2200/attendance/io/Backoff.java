@@ -0,0 +1,39 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Capped exponential backoff with jitter.
+ * <br /><br />
+ * Each delay is drawn from the upper half of the current window, which
+ * doubles per attempt up to the cap. Clients that failed at the same moment
+ * (say, a whole building of kiosks when the server restarts) spread out
+ * instead of retrying in lockstep, while never retrying faster than half
+ * the window.
+ */
+final class Backoff {
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private int attempt = 0;
+
+    Backoff(long baseMillis, long maxMillis) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @return the delay before the next attempt, in milliseconds
+     */
+    long next() {
+        long window = Math.min(this.maxMillis, this.baseMillis << Math.min(this.attempt, 30));
+        this.attempt++;
+        long half = window / 2;
+        return half + ThreadLocalRandom.current().nextLong(window - half + 1);
+    }
+
+    void reset() {
+        this.attempt = 0;
+    }
+
+}
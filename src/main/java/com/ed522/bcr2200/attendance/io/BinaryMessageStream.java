@@ -0,0 +1,204 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes messages in the compact binary encoding, used once both
+ * sides agree on it during the handshake.
+ * <br /><br />
+ * Every frame is a big-endian length (2 bytes, counting what follows), the
+ * protocol version (1 byte), the {@link Message.Type#binaryId type} (1 byte)
+ * and a body:
+ * <pre>
+ * heartbeat, heartbeat_error   counter:8
+ * code, codes                  id:8 stream:str count:2 (code:8 generation_time:8)*count
+ * acknowledge                  targeting:1 id:8 counter:8 valid_to:8
+ * connect                      (empty)
+ * str                          length:1 UTF-8 bytes, length 0 for none
+ * </pre>
+ * Numeric fields a message does not carry hold {@link Message#ABSENT}. After
+ * the handshake the client writes first, so no binary frame can arrive
+ * before this stream is created.
+ * <br /><br />
+ * Both buffers are allocated once per connection, and only grown, up to the
+ * largest frame, if a message does not fit; encoding and decoding allocate
+ * nothing else except a stream id string on the rare incoming code message.
+ */
+final class BinaryMessageStream implements MessageStream {
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_FRAME = 0xFFFF;
+    private static final int LENGTH_SIZE = 2;
+    private static final int CODE_SIZE = 16; // code:8 generation_time:8
+
+    private final Transport transport;
+    private final byte version;
+    private ByteBuffer in;
+    private ByteBuffer out;
+    // stream ids are few and long-lived, encode each once
+    private final Map<String, byte[]> streamIds = new IdentityHashMap<>();
+
+    /**
+     * @param transport the connection
+     * @param version the protocol version agreed in the handshake, written in and expected on every frame
+     */
+    BinaryMessageStream(Transport transport, int version) {
+        this.transport = transport;
+        this.version = (byte) version;
+        this.in = transport.allocate(BUFFER_SIZE);
+        this.in.flip(); // kept ready for reading, start empty
+        this.out = transport.allocate(BUFFER_SIZE);
+    }
+
+    @Override
+    public int maxEncodedCodeSize() {
+        return CODE_SIZE;
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        while (true) {
+            try {
+                this.out.clear();
+                this.encode(message, this.out);
+                break;
+            } catch (BufferOverflowException e) {
+                if (this.out.capacity() >= MAX_FRAME + LENGTH_SIZE) throw new IOException("Message too large to encode", e);
+                this.out = this.transport.allocate(Math.min(this.out.capacity() * 2, MAX_FRAME + LENGTH_SIZE));
+            }
+        }
+        this.out.flip();
+        this.transport.write(this.out);
+    }
+
+    private void encode(Message message, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        dst.putShort((short) 0); // length, filled in below
+        dst.put(this.version);
+        dst.put((byte) message.type.binaryId);
+        switch (message.type) {
+            case CONNECT -> {}
+            case HEARTBEAT, HEARTBEAT_ERROR -> dst.putLong(message.counter);
+            case CODE, CODES -> {
+                dst.putLong(message.id);
+                this.putStreamId(message.stream, dst);
+                dst.putShort((short) message.codeCount);
+                for (int i = 0; i < message.codeCount; i++) {
+                    dst.putLong(message.codes[i]);
+                    dst.putLong(message.generationTimes[i]);
+                }
+            }
+            case ACKNOWLEDGE -> {
+                dst.put((byte) (message.targeting == null ? 0 : message.targeting.binaryId));
+                dst.putLong(message.id);
+                dst.putLong(message.counter);
+                dst.putLong(message.validTo);
+            }
+        }
+        int length = dst.position() - start - LENGTH_SIZE;
+        if (length > MAX_FRAME) throw new BufferOverflowException();
+        dst.putShort(start, (short) length);
+    }
+
+    private void putStreamId(String id, ByteBuffer dst) throws IOException {
+        if (id == null) {
+            dst.put((byte) 0);
+            return;
+        }
+        byte[] bytes = this.streamIds.computeIfAbsent(id, s -> s.getBytes(StandardCharsets.UTF_8));
+        if (bytes.length == 0 || bytes.length > 0xFF) throw new IOException("Stream id cannot be encoded: " + id);
+        dst.put((byte) bytes.length).put(bytes);
+    }
+
+    @Override
+    public boolean read(Message into, int timeoutMillis) throws IOException {
+
+        if (!this.fill(LENGTH_SIZE, timeoutMillis)) return false;
+        int length = Short.toUnsignedInt(this.in.getShort(this.in.position()));
+        if (length < 2) throw new IOException("Remote sent invalid frame length " + length);
+        this.fill(LENGTH_SIZE + length, timeoutMillis);
+
+        int end = this.in.position() + LENGTH_SIZE + length;
+        int limit = this.in.limit();
+        this.in.position(this.in.position() + LENGTH_SIZE);
+        this.in.limit(end);
+        try {
+            this.decode(into.clear(), this.in);
+            if (this.in.hasRemaining()) throw new IOException("Remote sent a frame longer than its message");
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Remote sent a truncated message", e);
+        } finally {
+            this.in.limit(limit);
+            this.in.position(end);
+        }
+        return true;
+
+    }
+
+    private void decode(Message into, ByteBuffer src) throws IOException {
+        byte frameVersion = src.get();
+        if (frameVersion != this.version) throw new IOException("Remote sent protocol version " + frameVersion);
+        into.type = Message.Type.fromBinaryId(src.get());
+        if (into.type == null) throw new IOException("Remote sent unknown message type");
+        switch (into.type) {
+            case CONNECT -> {}
+            case HEARTBEAT, HEARTBEAT_ERROR -> into.counter = src.getLong();
+            case CODE, CODES -> {
+                into.id = src.getLong();
+                int idLength = Byte.toUnsignedInt(src.get());
+                if (idLength > 0) {
+                    byte[] bytes = new byte[idLength];
+                    src.get(bytes);
+                    into.stream = new String(bytes, StandardCharsets.UTF_8);
+                }
+                int count = Short.toUnsignedInt(src.getShort());
+                for (int i = 0; i < count; i++) into.addCode(src.getLong(), src.getLong());
+            }
+            case ACKNOWLEDGE -> {
+                into.targeting = Message.Type.fromBinaryId(src.get());
+                into.id = src.getLong();
+                into.counter = src.getLong();
+                into.validTo = src.getLong();
+            }
+        }
+    }
+
+    /**
+     * Make sure at least {@code needed} bytes are buffered.
+     * @return false if nothing at all was buffered and nothing arrived within the timeout
+     * @throws IOException if the remote closed the connection or stalled after starting a frame
+     */
+    private boolean fill(int needed, int timeoutMillis) throws IOException {
+        if (needed > this.in.capacity()) {
+            // at most MAX_FRAME + LENGTH_SIZE, as the length field cannot say more
+            ByteBuffer larger = this.transport.allocate(Math.max(needed, Math.min(this.in.capacity() * 2, MAX_FRAME + LENGTH_SIZE)));
+            larger.put(this.in).flip();
+            this.in = larger;
+        }
+        while (this.in.remaining() < needed) {
+            boolean started = this.in.hasRemaining();
+            this.in.compact();
+            int read;
+            try {
+                read = this.transport.read(this.in, timeoutMillis);
+            } catch (SocketTimeoutException e) {
+                if (!started) return false;
+                // part of the frame was consumed, the stream cannot be resynchronised
+                throw new IOException("Remote stalled in the middle of a message", e);
+            } finally {
+                this.in.flip();
+            }
+            if (read == -1) throw new EOFException("Remote closed the connection");
+        }
+        return true;
+    }
+
+}
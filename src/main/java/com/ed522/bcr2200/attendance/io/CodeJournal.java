@@ -0,0 +1,352 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.VerificationCode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only journal of the codes an endpoint has generated and which of
+ * them the server acknowledged, kept in a memory-mapped file so that codes
+ * survive a restart.
+ * <br /><br />
+ * Every queued code is appended before it is sent, and an acknowledgement
+ * record follows once the server has it. Codes the server never acknowledged,
+ * whether left over from before a restart or given up on after a lost
+ * connection, are replayed in order, in one batch, after the next handshake
+ * (see {@link AttendanceEndpoint#setJournal(CodeJournal)}).
+ * <br /><br />
+ * The journal compacts itself as codes are acknowledged: once nothing is
+ * outstanding it starts over from empty, which is the usual case while
+ * connected, and once acknowledged records fill a quarter of it, it is
+ * rewritten with only the outstanding codes. When it is full of outstanding
+ * codes the oldest are dropped.
+ * <br /><br />
+ * Records are written with their type byte last, over space that is always
+ * zeroed, so a client killed part way through a record leaves a journal that
+ * simply ends before it. Codes are forced to storage as they are appended;
+ * acknowledgements are not, so after a power cut a code the server already
+ * has may be replayed, which the server must accept.
+ * <br /><br />
+ * The file holds two regions of records, and its header says which one is
+ * live. Compacting writes the other region and forces it before switching
+ * the header over, so a client killed part way through still finds every
+ * outstanding code in the region it was using.
+ */
+public final class CodeJournal implements Closeable {
+
+    /**
+     * A code in the journal.
+     * @param sequence the code's position in the journal, increasing
+     * @param stream the id of the stream the code was sent on, or null for the default stream
+     * @param value the code's value
+     * @param time when the code becomes valid, in epoch seconds
+     */
+    public record Entry(long sequence, String stream, long value, long time) {}
+
+    /** Not a sequence, for codes that could not be journaled. */
+    public static final long NOT_JOURNALED = -1;
+
+    static final int CAPACITY = 128 * 1024; // bytes of records, a few thousand codes
+
+    private static final Logger LOGGER = Logger.getLogger("CodeJournal");
+
+    private static final int MAGIC = 0x42435231; // "BCR1"
+    private static final int VERSION = 2;
+    static final int HEADER_SIZE = 16; // magic, version, live region, padding
+    static final int REGION_OFFSET = 8;
+    private static final byte END = 0;
+    private static final byte CODE = 1;
+    private static final byte ACKNOWLEDGED = 2;
+    static final int CODE_SIZE = 1 + 8 + 8 + 8 + 2; // type, sequence, value, time, stream id length
+    private static final int ACKNOWLEDGED_SIZE = 1 + 8; // type, sequence
+    private static final byte[] ZEROES = new byte[4096];
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+
+    // guarded by this
+    private final LinkedHashMap<Long, Entry> outstanding = new LinkedHashMap<>();
+    private final TreeMap<Long, Entry> parked = new TreeMap<>();
+    private int region = 0;
+    private int position = HEADER_SIZE;
+    private int liveBytes = 0; // of outstanding code records
+    private long nextSequence = 0;
+
+    private CodeJournal(FileChannel channel, FileLock lock, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.lock = lock;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Open a journal, creating it (with its directory) if needed. Codes left
+     * outstanding by a previous run are parked, ready to be replayed.
+     * @param file the journal file
+     * @return the journal
+     * @throws IOException if the file cannot be mapped, or another client holds it
+     */
+    public static CodeJournal open(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) throw new IOException("Journal " + file + " is in use by another client");
+            CodeJournal journal = new CodeJournal(channel, lock,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * CAPACITY));
+            journal.load();
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the journal in the user's home directory
+     * @throws IOException as for {@link #open(Path)}
+     */
+    public static CodeJournal inHomeDirectory() throws IOException {
+        return open(Path.of(System.getProperty("user.home"), ".bcr2200-attendance", "codes.journal"));
+    }
+
+    private synchronized void load() {
+
+        int live = this.buffer.getInt(REGION_OFFSET);
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION || (live != 0 && live != 1)) {
+            // new, from some other version, or damaged
+            this.zero(0, HEADER_SIZE + 2 * CAPACITY);
+            this.buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(REGION_OFFSET, 0);
+            this.buffer.force();
+            return;
+        }
+
+        this.region = live;
+        int limit = this.limit();
+        int at = this.start();
+        while (at < limit) {
+            byte type = this.buffer.get(at);
+            if (type == END) break;
+            if (type == CODE && at + CODE_SIZE <= limit) {
+                int length = this.buffer.getShort(at + CODE_SIZE - 2);
+                int end = at + CODE_SIZE + Math.max(length, 0);
+                if (length < -1 || end > limit) break;
+                String stream = null;
+                if (length >= 0) {
+                    byte[] id = new byte[length];
+                    this.buffer.get(at + CODE_SIZE, id);
+                    stream = new String(id, StandardCharsets.UTF_8);
+                }
+                Entry entry = new Entry(this.buffer.getLong(at + 1), stream,
+                        this.buffer.getLong(at + 9), this.buffer.getLong(at + 17));
+                this.outstanding.put(entry.sequence(), entry);
+                this.liveBytes += end - at;
+                this.nextSequence = Math.max(this.nextSequence, entry.sequence() + 1);
+                at = end;
+            } else if (type == ACKNOWLEDGED && at + ACKNOWLEDGED_SIZE <= limit) {
+                Entry entry = this.outstanding.remove(this.buffer.getLong(at + 1));
+                if (entry != null) this.liveBytes -= sizeOf(entry);
+                at += ACKNOWLEDGED_SIZE;
+            } else {
+                break;
+            }
+        }
+        this.position = at;
+        if (at < limit && this.buffer.get(at) != END) {
+            LOGGER.log(Level.WARNING, "Journal is damaged after " + this.outstanding.size() + " codes, ignoring the rest");
+            this.zero(at, limit);
+        }
+
+        this.parked.putAll(this.outstanding);
+        if (!this.outstanding.isEmpty()) {
+            LOGGER.log(Level.INFO, "Journal holds " + this.outstanding.size() + " unacknowledged codes");
+        }
+
+    }
+
+    /**
+     * Append codes about to be queued, and force them to storage.
+     * @param stream the id of the stream they are sent on, or null for the default stream
+     * @param codes the codes
+     * @return each code's sequence, in the same order
+     */
+    public synchronized long[] append(String stream, List<VerificationCode> codes) {
+        byte[] id = stream == null ? null : stream.getBytes(StandardCharsets.UTF_8);
+        int size = CODE_SIZE + (id == null ? 0 : id.length);
+        long[] sequences = new long[codes.size()];
+        int start = -1;
+        int region = this.region;
+        for (int i = 0; i < codes.size(); i++) {
+            if (!this.makeRoom(size)) {
+                sequences[i] = NOT_JOURNALED;
+                continue;
+            }
+            // compacting forced the codes appended so far
+            if (start == -1 || region != this.region) start = this.position;
+            region = this.region;
+            VerificationCode code = codes.get(i);
+            Entry entry = new Entry(this.nextSequence++, stream, code.value(), code.time().getEpochSecond());
+            this.outstanding.put(entry.sequence(), entry);
+            this.liveBytes += size;
+            this.position = this.write(this.position, entry, id);
+            sequences[i] = entry.sequence();
+        }
+        if (start != -1) this.buffer.force(start, this.position - start);
+        return sequences;
+    }
+
+    /**
+     * Note that the server acknowledged codes, compacting if that leaves
+     * little outstanding.
+     * @param sequences the codes' sequences, {@link #NOT_JOURNALED} ones are skipped
+     */
+    public synchronized void acknowledge(long... sequences) {
+        for (long sequence : sequences) {
+            Entry entry = this.outstanding.remove(sequence);
+            if (entry == null) continue;
+            this.parked.remove(sequence);
+            this.liveBytes -= sizeOf(entry);
+            if (this.outstanding.isEmpty()) {
+                // the usual case, everything sent has been acknowledged
+                this.zero(this.start(), this.position);
+                this.position = this.start();
+            } else {
+                if (this.position + ACKNOWLEDGED_SIZE > this.limit()) this.compact();
+                this.buffer.putLong(this.position + 1, sequence);
+                this.buffer.put(this.position, ACKNOWLEDGED);
+                this.position += ACKNOWLEDGED_SIZE;
+            }
+        }
+        if (this.position - this.start() - this.liveBytes > CAPACITY / 4) this.compact();
+    }
+
+    /**
+     * Set a code aside to be replayed after the next handshake, as the
+     * endpoint has given up sending it on this connection.
+     * @param sequence the code's sequence
+     */
+    public synchronized void park(long sequence) {
+        Entry entry = this.outstanding.get(sequence);
+        if (entry != null) this.parked.put(sequence, entry);
+    }
+
+    /**
+     * @return every parked code, oldest first, no longer parked
+     */
+    public synchronized List<Entry> takeParked() {
+        List<Entry> entries = new ArrayList<>(this.parked.values());
+        this.parked.clear();
+        return entries;
+    }
+
+    /**
+     * @return how many codes the server has not acknowledged
+     */
+    public synchronized int size() {
+        return this.outstanding.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.buffer.force();
+        this.lock.release();
+        this.channel.close();
+    }
+
+    /**
+     * Make sure a record of {@code size} bytes fits, compacting and then
+     * dropping the oldest codes if needed.
+     * @return false if it can never fit
+     */
+    private boolean makeRoom(int size) {
+        if (size > CAPACITY) return false;
+        if (this.position + size <= this.limit()) return true;
+        int dropped = 0;
+        while (this.liveBytes + size > CAPACITY) {
+            Iterator<Entry> oldest = this.outstanding.values().iterator();
+            Entry entry = oldest.next();
+            oldest.remove();
+            this.parked.remove(entry.sequence());
+            this.liveBytes -= sizeOf(entry);
+            dropped++;
+        }
+        if (dropped > 0) LOGGER.log(Level.WARNING, "Journal full, dropped the " + dropped + " oldest codes");
+        this.compact();
+        return true;
+    }
+
+    /**
+     * Rewrite the outstanding codes into the other region, and switch to it
+     * once they are on storage. Until the header is switched, a client killed
+     * part way through finds the region it was using untouched.
+     */
+    private void compact() {
+        int other = 1 - this.region;
+        int at = regionStart(other);
+        // left over from the last compaction, or from one that never finished
+        this.zero(at, at + CAPACITY);
+        for (Entry entry : this.outstanding.values()) {
+            at = this.write(at, entry, entry.stream() == null ? null : entry.stream().getBytes(StandardCharsets.UTF_8));
+        }
+        this.buffer.force(regionStart(other), CAPACITY);
+        // a single aligned int, so it is written whole or not at all
+        this.buffer.putInt(REGION_OFFSET, other);
+        this.buffer.force(0, HEADER_SIZE);
+        this.region = other;
+        this.position = at;
+    }
+
+    private int start() {
+        return regionStart(this.region);
+    }
+
+    private int limit() {
+        return regionStart(this.region) + CAPACITY;
+    }
+
+    static int regionStart(int region) {
+        return HEADER_SIZE + region * CAPACITY;
+    }
+
+    /**
+     * Write a code record at {@code at}, type last.
+     * @return where the record ends
+     */
+    private int write(int at, Entry entry, byte[] id) {
+        this.buffer.putLong(at + 1, entry.sequence());
+        this.buffer.putLong(at + 9, entry.value());
+        this.buffer.putLong(at + 17, entry.time());
+        this.buffer.putShort(at + 25, (short) (id == null ? -1 : id.length));
+        if (id != null) this.buffer.put(at + CODE_SIZE, id);
+        this.buffer.put(at, CODE);
+        return at + CODE_SIZE + (id == null ? 0 : id.length);
+    }
+
+    private static int sizeOf(Entry entry) {
+        return CODE_SIZE + (entry.stream() == null ? 0 : entry.stream().getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private void zero(int from, int to) {
+        for (int at = from; at < to; at += ZEROES.length) {
+            this.buffer.put(at, ZEROES, 0, Math.min(ZEROES.length, to - at));
+        }
+    }
+
+}
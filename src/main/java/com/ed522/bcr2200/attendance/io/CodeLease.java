@@ -0,0 +1,162 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.google.gson.JsonObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Permission from the server to make codes without asking it, until the
+ * lease runs out.
+ * <br /><br />
+ * A server that is offered leases in the handshake may grant one, as a
+ * {@code "lease"} object in its acknowledgement:
+ * <pre>
+ * "lease": {"key": "&lt;base64&gt;", "period": 30, "valid_until": 1790000000}
+ * </pre>
+ * Time is cut into periods of {@code period} seconds from the epoch, and the
+ * codes for a period are derived from the key much as in TOTP (RFC 6238): an
+ * HMAC-SHA256 of the stream id, the period's number and the code's index,
+ * dynamically truncated. The server derives the same codes, so the client
+ * can show them with no round trip, and only tells the server which it
+ * showed now and then.
+ */
+public final class CodeLease {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final byte[] key;
+    private final long period; // s
+    private final long validUntil; // epoch s
+    // guarded by this
+    private Mac mac;
+
+    /**
+     * @param key the shared key
+     * @param period how long each period's codes last, in seconds
+     * @param validUntil when the lease runs out, in epoch seconds
+     */
+    public CodeLease(byte[] key, long period, long validUntil) {
+        if (key.length == 0) throw new IllegalArgumentException("Empty lease key");
+        if (period <= 0) throw new IllegalArgumentException("Lease period must be positive, got " + period);
+        this.key = key.clone();
+        this.period = period;
+        this.validUntil = validUntil;
+    }
+
+    /**
+     * @param lease the lease object from a handshake acknowledgement
+     * @return the lease it describes
+     * @throws IllegalArgumentException if it is not a valid lease, naming the field but never the key
+     */
+    static CodeLease fromJson(JsonObject lease) {
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(lease.get("key").getAsString());
+        } catch (RuntimeException e) {
+            // no cause, as its message may quote the key
+            throw new IllegalArgumentException("Invalid lease: missing or malformed key");
+        }
+        return new CodeLease(key, longField(lease, "period"), longField(lease, "valid_until"));
+    }
+
+    private static long longField(JsonObject lease, String name) {
+        try {
+            return lease.get(name).getAsLong();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid lease: missing or malformed " + name);
+        }
+    }
+
+    /**
+     * @return this lease, as sent in a handshake acknowledgement
+     */
+    public JsonObject toJson() {
+        JsonObject lease = new JsonObject();
+        lease.addProperty("key", Base64.getEncoder().encodeToString(this.key));
+        lease.addProperty("period", this.period);
+        lease.addProperty("valid_until", this.validUntil);
+        return lease;
+    }
+
+    /**
+     * @param nowMillis the current time, in epoch milliseconds
+     * @return whether codes may be derived for the period containing {@code nowMillis}
+     */
+    public boolean covers(long nowMillis) {
+        return Math.floorDiv(nowMillis, 1000) < this.validUntil;
+    }
+
+    /**
+     * @param nowMillis a time, in epoch milliseconds
+     * @return the number of the period containing it
+     */
+    public long periodAt(long nowMillis) {
+        return Math.floorDiv(Math.floorDiv(nowMillis, 1000), this.period);
+    }
+
+    /**
+     * @param period the period's number
+     * @return when its codes become valid
+     */
+    public Instant start(long period) {
+        return Instant.ofEpochSecond(period * this.period);
+    }
+
+    /**
+     * @param period the period's number
+     * @return when its codes stop being valid, never after the lease runs out
+     */
+    public Instant expiry(long period) {
+        return Instant.ofEpochSecond(Math.min((period + 1) * this.period, this.validUntil));
+    }
+
+    /**
+     * @return when the lease runs out, in epoch seconds
+     */
+    public long getValidUntil() {
+        return this.validUntil;
+    }
+
+    /**
+     * Derive a period's codes.
+     * @param streamId the stream the codes are shown on, or null for the default stream
+     * @param period the period's number
+     * @param count how many codes
+     * @param bound one more than the largest code
+     * @return the codes
+     */
+    public synchronized long[] derive(String streamId, long period, int count, int bound) {
+        Mac mac = this.mac();
+        byte[] stream = streamId == null ? new byte[0] : streamId.getBytes(StandardCharsets.UTF_8);
+        long[] codes = new long[count];
+        for (int i = 0; i < count; i++) {
+            mac.update(stream);
+            // a separator, so "room1" and period 2 never collide with "room" and period 12
+            mac.update(ByteBuffer.allocate(1 + 8 + 4).put((byte) 0).putLong(period).putInt(i).array());
+            byte[] hash = mac.doFinal();
+            int offset = hash[hash.length - 1] & 0xF;
+            int truncated = (hash[offset] & 0x7F) << 24 | (hash[offset + 1] & 0xFF) << 16
+                    | (hash[offset + 2] & 0xFF) << 8 | (hash[offset + 3] & 0xFF);
+            codes[i] = truncated % bound;
+        }
+        return codes;
+    }
+
+    private Mac mac() {
+        if (this.mac == null) try {
+            this.mac = Mac.getInstance(ALGORITHM);
+            this.mac.init(new SecretKeySpec(this.key, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            // every Java platform has HmacSHA256
+            throw new IllegalStateException("No " + ALGORITHM, e);
+        }
+        return this.mac;
+    }
+
+}
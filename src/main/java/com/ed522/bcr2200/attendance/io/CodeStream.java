@@ -0,0 +1,79 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.VerificationCode;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * One logical display's codes, multiplexed with other displays' over a
+ * single {@link AttendanceEndpoint} connection.
+ * <br /><br />
+ * Codes sent through a stream are tagged with its id, so the server can tell
+ * rooms apart, and only this stream's expiry callback is triggered when they
+ * are acknowledged. Obtain one with {@link AttendanceEndpoint#openStream(String)}.
+ */
+public final class CodeStream {
+
+    private final AttendanceEndpoint endpoint;
+    private final String id;
+    private volatile Consumer<Instant> onExpiryReceived = x -> {};
+
+    CodeStream(AttendanceEndpoint endpoint, String id) {
+        this.endpoint = endpoint;
+        this.id = id;
+    }
+
+    /**
+     * @return the stream id sent with each code, or null for the endpoint's default stream
+     */
+    public String getId() {
+        return this.id;
+    }
+
+    public AttendanceEndpoint getEndpoint() {
+        return this.endpoint;
+    }
+
+    /**
+     * Queue a code on this stream.
+     * @param code the code to send
+     * @return a future completed with the code's expiry
+     * @see AttendanceEndpoint#sendCodeAsync(VerificationCode)
+     */
+    public CompletableFuture<Instant> sendCodeAsync(VerificationCode code) {
+        return this.sendCodesAsync(List.of(code)).getFirst();
+    }
+
+    /**
+     * Queue several codes on this stream so that they are sent together.
+     * @param codes the codes to send
+     * @return one future per code, in the same order
+     * @see AttendanceEndpoint#sendCodesAsync(List)
+     */
+    public List<CompletableFuture<Instant>> sendCodesAsync(List<VerificationCode> codes) {
+        return this.endpoint.enqueue(this, codes, false);
+    }
+
+    /**
+     * Tell the server about codes derived under a {@link CodeLease}. They
+     * are sent together with every other stream's, at most every half
+     * minute, and journaled like any others.
+     * @param codes the codes shown
+     * @return one future per code, in the same order, as for {@link #sendCodesAsync(List)}
+     */
+    public List<CompletableFuture<Instant>> reconcileCodesAsync(List<VerificationCode> codes) {
+        return this.endpoint.enqueue(this, codes, true);
+    }
+
+    public void setOnExpiryReceived(Consumer<Instant> callback) {
+        this.onExpiryReceived = callback;
+    }
+
+    void expiryReceived(Instant expiry) {
+        this.onExpiryReceived.accept(expiry);
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The threads and sockets working on one connection attempt, which end
+ * together.
+ * <br /><br />
+ * Much like {@code StructuredTaskScope}, which is still a preview in Java 21:
+ * tasks are {@link #fork(String, Task) forked} into the scope as virtual
+ * threads, and however the owner leaves it (done, failed or interrupted),
+ * closing the scope closes every resource {@link #register(Closeable)
+ * registered} with it, interrupts whatever is still running and waits for
+ * it to finish. Resources are closed first, as a thread blocked on a socket
+ * only notices the socket closing, not an interrupt.
+ * <br /><br />
+ * A task failing does not cancel the others, as probes to different hosts
+ * fail on their own; the owner decides when the attempt has failed, and
+ * leaves the scope.
+ */
+final class ConnectionScope implements Closeable {
+
+    /**
+     * A task forked into a scope.
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("ConnectionScope");
+    private static final long CLOSE_TIMEOUT = 5_000; // ms, for tasks to notice they were cancelled
+
+    private final String name;
+    // guarded by this
+    private final List<Thread> threads = new ArrayList<>();
+    private final Deque<Closeable> resources = new ArrayDeque<>();
+    private boolean closed = false;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    /**
+     * @param name prefixed to the names of forked threads
+     */
+    ConnectionScope(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Run a task on a virtual thread of its own. A task that is interrupted,
+     * or whose socket is closed under it, has been cancelled, and is not
+     * counted as failing.
+     * @param taskName names the thread
+     * @param task the task
+     * @throws IllegalStateException if the scope is closed
+     */
+    synchronized void fork(String taskName, Task task) {
+        if (this.closed) throw new IllegalStateException("Scope " + this.name + " is closed");
+        this.threads.add(Thread.ofVirtual().name(this.name + "/" + taskName).start(() -> {
+            try {
+                task.run();
+            } catch (InterruptedException | InterruptedIOException e) {
+                // cancelled
+            } catch (Exception e) {
+                if (!this.isClosed()) this.failure.compareAndSet(null, e);
+            }
+        }));
+    }
+
+    /**
+     * Close {@code resource} when the scope closes, before the ones registered earlier.
+     * @return {@code resource}
+     * @throws IllegalStateException if the scope is closed, after closing {@code resource}
+     */
+    <T extends Closeable> T register(T resource) throws IOException {
+        synchronized (this) {
+            if (!this.closed) {
+                this.resources.push(resource);
+                return resource;
+            }
+        }
+        resource.close();
+        throw new IllegalStateException("Scope " + this.name + " is closed");
+    }
+
+    /**
+     * @return whether every forked task has finished
+     */
+    synchronized boolean isIdle() {
+        for (Thread thread : this.threads) {
+            if (thread.isAlive()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for every forked task to finish.
+     * @return the first exception a task failed with, or null if none did
+     * @throws InterruptedException if interrupted while waiting, the tasks are left running until the scope closes
+     */
+    Exception join() throws InterruptedException {
+        List<Thread> forked;
+        synchronized (this) {
+            forked = List.copyOf(this.threads);
+        }
+        for (Thread thread : forked) {
+            thread.join();
+        }
+        return this.failure.get();
+    }
+
+    private synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Close every registered resource, interrupt every task still running,
+     * and wait up to {@link #CLOSE_TIMEOUT} for them to finish. Tasks that
+     * outlive that are logged, never left silently.
+     */
+    @Override
+    public void close() {
+
+        List<Thread> forked;
+        List<Closeable> toClose;
+        synchronized (this) {
+            if (this.closed) return;
+            this.closed = true;
+            forked = List.copyOf(this.threads);
+            toClose = List.copyOf(this.resources);
+        }
+
+        for (Closeable resource : toClose) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing " + resource + ": " + e.getMessage());
+            }
+        }
+        for (Thread thread : forked) {
+            thread.interrupt();
+        }
+
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT);
+        for (Thread thread : forked) {
+            long remaining;
+            while (thread.isAlive() && (remaining = deadline - System.nanoTime()) > 0) try {
+                thread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+            } catch (InterruptedException e) {
+                // finish closing, the owner is told below
+                interrupted = true;
+            }
+            if (thread.isAlive()) LOGGER.log(Level.WARNING, "Task " + thread.getName() + " did not stop");
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+    }
+
+}
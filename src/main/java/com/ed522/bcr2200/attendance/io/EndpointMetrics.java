@@ -0,0 +1,229 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.ConnectionState;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms for one {@link AttendanceEndpoint}.
+ * <br /><br />
+ * The endpoint updates these as it works, using only adders and
+ * {@link LatencyHistogram}s, so instrumentation costs no allocation or
+ * formatting on the send path. They can be read over JMX once
+ * {@link #register(String) registered}, or written out with
+ * {@link #writeSnapshot(Path)}.
+ */
+public final class EndpointMetrics implements EndpointMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger("EndpointMetrics");
+
+    // created on first use, most clients never write a snapshot
+    private static final class Printer {
+        static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    }
+
+    private final AttendanceEndpoint endpoint;
+
+    final LongAdder connections = new LongAdder();
+    final LongAdder disconnections = new LongAdder();
+    final LongAdder codesSent = new LongAdder();
+    final LongAdder codesAcknowledged = new LongAdder();
+    final LongAdder codesFailed = new LongAdder();
+    final LongAdder codesReplayed = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder heartbeatsSent = new LongAdder();
+    final LongAdder heartbeatErrors = new LongAdder();
+
+    final LatencyHistogram discovery = new LatencyHistogram();
+    final LatencyHistogram handshake = new LatencyHistogram();
+    final LatencyHistogram codeAcknowledgement = new LatencyHistogram();
+    final LatencyHistogram heartbeatRoundTrip = new LatencyHistogram();
+
+    private volatile double smoothedRttMillis = -1;
+
+    // guarded by this, state changes are rare
+    private final long[] nanosInState = new long[ConnectionState.values().length];
+    private ConnectionState currentState;
+    private long stateSince = System.nanoTime();
+
+    EndpointMetrics(AttendanceEndpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    synchronized void stateChanged(ConnectionState state) {
+        long now = System.nanoTime();
+        if (this.currentState != null) this.nanosInState[this.currentState.ordinal()] += now - this.stateSince;
+        this.currentState = state;
+        this.stateSince = now;
+    }
+
+    void rttUpdated(double smoothedMillis) {
+        this.smoothedRttMillis = smoothedMillis;
+    }
+
+    /**
+     * Register with the platform MBean server, as
+     * {@code com.ed522.bcr2200.attendance:type=Endpoint,name=<name>}. Failing
+     * to register is logged, never thrown.
+     * @param name the name to register under
+     */
+    public void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.ed522.bcr2200.attendance:type=Endpoint,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not register metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write every metric to {@code file} as JSON, replacing it whole.
+     * @param file the file to write, its directory is created if needed
+     * @throws IOException if the file could not be written
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        JsonObject snapshot = new JsonObject();
+        snapshot.addProperty("time", Instant.now().toString());
+        snapshot.addProperty("state", this.getState());
+        snapshot.addProperty("connections", this.getConnections());
+        snapshot.addProperty("disconnections", this.getDisconnections());
+        snapshot.addProperty("codes_sent", this.getCodesSent());
+        snapshot.addProperty("codes_acknowledged", this.getCodesAcknowledged());
+        snapshot.addProperty("codes_failed", this.getCodesFailed());
+        snapshot.addProperty("codes_replayed", this.getCodesReplayed());
+        snapshot.addProperty("retries", this.getRetries());
+        snapshot.addProperty("heartbeats_sent", this.getHeartbeatsSent());
+        snapshot.addProperty("heartbeat_errors", this.getHeartbeatErrors());
+        snapshot.addProperty("smoothed_rtt_ms", this.getSmoothedRttMillis());
+        snapshot.add("discovery", toJson(this.getDiscovery()));
+        snapshot.add("handshake", toJson(this.getHandshake()));
+        snapshot.add("code_acknowledgement", toJson(this.getCodeAcknowledgement()));
+        snapshot.add("heartbeat_round_trip", toJson(this.getHeartbeatRoundTrip()));
+        JsonObject inState = new JsonObject();
+        this.getMillisInState().forEach(inState::addProperty);
+        snapshot.add("ms_in_state", inState);
+
+        // write beside the real file and move it into place, so readers never see half a snapshot
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temp, Printer.GSON.toJson(snapshot), StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static JsonObject toJson(LatencyHistogram.Snapshot snapshot) {
+        JsonObject object = new JsonObject();
+        object.addProperty("count", snapshot.count());
+        object.addProperty("mean_ms", snapshot.meanMillis());
+        object.addProperty("p50_ms", snapshot.p50Millis());
+        object.addProperty("p90_ms", snapshot.p90Millis());
+        object.addProperty("p99_ms", snapshot.p99Millis());
+        object.addProperty("max_ms", snapshot.maxMillis());
+        return object;
+    }
+
+    @Override
+    public String getState() {
+        return String.valueOf(this.endpoint.getState());
+    }
+
+    @Override
+    public long getConnections() {
+        return this.connections.sum();
+    }
+
+    @Override
+    public long getDisconnections() {
+        return this.disconnections.sum();
+    }
+
+    @Override
+    public long getCodesSent() {
+        return this.codesSent.sum();
+    }
+
+    @Override
+    public long getCodesAcknowledged() {
+        return this.codesAcknowledged.sum();
+    }
+
+    @Override
+    public long getCodesFailed() {
+        return this.codesFailed.sum();
+    }
+
+    @Override
+    public long getCodesReplayed() {
+        return this.codesReplayed.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return this.retries.sum();
+    }
+
+    @Override
+    public long getHeartbeatsSent() {
+        return this.heartbeatsSent.sum();
+    }
+
+    @Override
+    public long getHeartbeatErrors() {
+        return this.heartbeatErrors.sum();
+    }
+
+    @Override
+    public double getSmoothedRttMillis() {
+        return this.smoothedRttMillis;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDiscovery() {
+        return this.discovery.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getHandshake() {
+        return this.handshake.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCodeAcknowledgement() {
+        return this.codeAcknowledgement.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getHeartbeatRoundTrip() {
+        return this.heartbeatRoundTrip.snapshot();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getMillisInState() {
+        long now = System.nanoTime();
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (ConnectionState state : ConnectionState.values()) {
+            long nanos = this.nanosInState[state.ordinal()];
+            if (state == this.currentState) nanos += now - this.stateSince;
+            result.put(state.name(), TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link EndpointMetrics}. Latencies are in
+ * milliseconds.
+ */
+public interface EndpointMetricsMXBean {
+
+    String getState();
+
+    long getConnections();
+    long getDisconnections();
+    long getCodesSent();
+    long getCodesAcknowledged();
+    long getCodesFailed();
+    /**
+     * @return how many codes were replayed from the journal after a handshake
+     */
+    long getCodesReplayed();
+    long getRetries();
+    long getHeartbeatsSent();
+    long getHeartbeatErrors();
+
+    /**
+     * @return the smoothed round trip time, or -1 before one was measured
+     */
+    double getSmoothedRttMillis();
+
+    LatencyHistogram.Snapshot getDiscovery();
+    LatencyHistogram.Snapshot getHandshake();
+    LatencyHistogram.Snapshot getCodeAcknowledgement();
+    LatencyHistogram.Snapshot getHeartbeatRoundTrip();
+
+    /**
+     * @return the total time spent in each connection state since the endpoint was created
+     */
+    Map<String, Long> getMillisInState();
+
+}
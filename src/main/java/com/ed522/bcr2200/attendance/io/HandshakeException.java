@@ -0,0 +1,20 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a server was reached but the handshake with it failed. Unlike
+ * a transport error, retrying straight away rarely helps, so reconnects after
+ * one back off more slowly.
+ */
+public class HandshakeException extends IOException {
+
+    public HandshakeException(String message) {
+        super(message);
+    }
+
+    public HandshakeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
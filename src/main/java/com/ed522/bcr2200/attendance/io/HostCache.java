@@ -0,0 +1,79 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the last server that completed a handshake, in a small file, so
+ * that a restarted or reconnecting client can ask it directly before falling
+ * back to broadcast discovery.
+ * <br /><br />
+ * Failing to read or write the file is never fatal, it only costs the fast
+ * path.
+ */
+public final class HostCache {
+
+    private static final Logger LOGGER = Logger.getLogger("HostCache");
+
+    private final Path file;
+    private String host;
+    private boolean loaded = false;
+
+    /**
+     * @param file the file to keep the host in, created (with its directory) on first use
+     */
+    public HostCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return a cache in the user's home directory
+     */
+    public static HostCache inHomeDirectory() {
+        return new HostCache(Path.of(System.getProperty("user.home"), ".bcr2200-attendance", "last-host"));
+    }
+
+    /**
+     * @return the last good host, or null if there is none
+     */
+    public synchronized String load() {
+        if (!this.loaded) {
+            this.loaded = true;
+            try {
+                String value = Files.readString(this.file, StandardCharsets.UTF_8).strip();
+                this.host = value.isEmpty() ? null : value;
+            } catch (NoSuchFileException e) {
+                this.host = null;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read last known host: " + e.getMessage());
+                this.host = null;
+            }
+        }
+        return this.host;
+    }
+
+    /**
+     * Remember a host that just completed a handshake.
+     * @param host the host's address
+     */
+    public synchronized void store(String host) {
+        if (host.equals(this.load())) return;
+        this.host = host;
+        try {
+            // write beside the real file and move it into place, so a power cut never leaves half a host
+            Files.createDirectories(this.file.getParent());
+            Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+            Files.writeString(temp, host, StandardCharsets.UTF_8);
+            Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save last known host: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Converts {@link Message}s to and from JSON without building a tree.
+ * <br /><br />
+ * Messages are written field by field to a {@link JsonWriter}, and read
+ * field by field from a {@link JsonReader} straight into a reused message.
+ * Only the fields the client understands are kept; anything else the server
+ * sends is skipped.
+ */
+final class JsonMessageCodec {
+
+    private JsonMessageCodec() {}
+
+    /**
+     * Write one message as a JSON object.
+     * @param message the message
+     * @param writer the writer, left positioned after the object
+     * @throws IOException if the writer failed
+     */
+    static void encode(Message message, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("type").value(message.type.wireName);
+        if (message.targeting != null) writer.name("targeting").value(message.targeting.wireName);
+        if (message.id != Message.ABSENT) writer.name("id").value(message.id);
+        if (message.counter != Message.ABSENT) writer.name("counter").value(message.counter);
+        if (message.validTo != Message.ABSENT) writer.name("valid_to").value(message.validTo);
+        if (message.type == Message.Type.CODE && message.codeCount == 1) {
+            writer.name("code").value(message.codes[0]);
+            writer.name("generation_time").value(message.generationTimes[0]);
+        } else if (message.codeCount > 0) {
+            writer.name("codes").beginArray();
+            for (int i = 0; i < message.codeCount; i++) {
+                writer.beginObject();
+                writer.name("code").value(message.codes[i]);
+                writer.name("generation_time").value(message.generationTimes[i]);
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        // only streams other than the default are tagged, so single-display servers see the same messages
+        if (message.stream != null) writer.name("stream").value(message.stream);
+        writer.endObject();
+    }
+
+    /**
+     * Read one JSON object into a message.
+     * @param reader the reader, positioned at the start of the object
+     * @param into the message to read into, cleared first
+     * @throws IOException if the reader failed
+     * @throws IllegalStateException if a field has the wrong shape
+     * @throws NumberFormatException if a numeric field is not a whole number
+     */
+    static void decode(JsonReader reader, Message into) throws IOException {
+        into.clear();
+        // a single code's fields arrive in any order, so hold them until the object ends
+        long code = Message.ABSENT;
+        long generationTime = Message.ABSENT;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "type" -> into.type = Message.Type.fromWireName(reader.nextString());
+                case "targeting" -> into.targeting = Message.Type.fromWireName(reader.nextString());
+                case "id" -> into.id = reader.nextLong();
+                case "counter" -> into.counter = reader.nextLong();
+                case "valid_to" -> into.validTo = reader.nextLong();
+                case "stream" -> into.stream = reader.nextString();
+                case "code" -> code = reader.nextLong();
+                case "generation_time" -> generationTime = reader.nextLong();
+                case "codes" -> decodeCodes(reader, into);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (code != Message.ABSENT) {
+            if (generationTime == Message.ABSENT) throw new IllegalStateException("code without generation_time");
+            into.addCode(code, generationTime);
+        }
+    }
+
+    private static void decodeCodes(JsonReader reader, Message into) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            long code = Message.ABSENT;
+            long generationTime = Message.ABSENT;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "code" -> code = reader.nextLong();
+                    case "generation_time" -> generationTime = reader.nextLong();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (code == Message.ABSENT || generationTime == Message.ABSENT) {
+                throw new IllegalStateException("codes entry without code or generation_time");
+            }
+            into.addCode(code, generationTime);
+        }
+        reader.endArray();
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.Strictness;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Reads and writes JSON messages over a {@link Transport}.
+ * <br /><br />
+ * Outgoing messages are terminated with a newline. Incoming messages are read
+ * by a single lenient {@link JsonReader} that lives as long as the connection,
+ * so a message split over several TCP segments, or several messages coalesced
+ * into one, are still read one at a time, and the read buffer is reused
+ * instead of being allocated per message. Likewise a single {@link JsonWriter}
+ * encodes every outgoing message into one reused buffer.
+ * <br /><br />
+ * {@link Message}s are streamed by {@link JsonMessageCodec} without building
+ * a tree; only the handshake, which has fields of its own, uses
+ * {@link JsonObject}s. This is the encoding every connection starts in, and
+ * the only one older servers speak.
+ */
+final class JsonMessageStream implements MessageStream {
+
+    private static final TypeAdapter<JsonElement> ELEMENT_ADAPTER = new Gson().getAdapter(JsonElement.class);
+    // {"code":<long>,"generation_time":<long>}, and a comma
+    private static final int CODE_SIZE = 8 + 20 + 19 + 20 + 1 + 1;
+
+    private final TransportReader source;
+    private final JsonReader reader;
+    private final TransportWriter sink;
+    private final JsonWriter writer;
+
+    JsonMessageStream(Transport transport) {
+        this.source = new TransportReader(transport);
+        this.reader = new JsonReader(this.source);
+        this.sink = new TransportWriter(transport);
+        this.writer = new JsonWriter(this.sink);
+        // lenient so that several top-level objects can follow each other on the stream
+        this.reader.setStrictness(Strictness.LENIENT);
+        this.writer.setStrictness(Strictness.LENIENT);
+    }
+
+    /**
+     * Write a single message and flush it.
+     * @param message the message to write
+     * @throws IOException if the transport could not be written to
+     */
+    void write(JsonObject message) throws IOException {
+        ELEMENT_ADAPTER.write(this.writer, message);
+        this.endMessage();
+    }
+
+    @Override
+    public int maxEncodedCodeSize() {
+        return CODE_SIZE;
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        JsonMessageCodec.encode(message, this.writer);
+        this.endMessage();
+    }
+
+    private void endMessage() throws IOException {
+        this.sink.write('\n');
+        this.writer.flush();
+    }
+
+    @Override
+    public boolean read(Message into, int timeoutMillis) throws IOException {
+        if (!this.startMessage(timeoutMillis)) return false;
+        try {
+            JsonMessageCodec.decode(this.reader, into);
+        } catch (SocketTimeoutException e) {
+            throw stalled(e);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Remote sent malformed message", e);
+        }
+        return true;
+    }
+
+    /**
+     * Read the next message.
+     * @param timeoutMillis how long to wait for the start of a message, 0 to wait forever
+     * @return the message, or null if none started within the timeout
+     * @throws IOException if the remote closed the connection, sent something
+     *                     other than an object, or stalled part way through a message
+     */
+    JsonObject read(int timeoutMillis) throws IOException {
+        if (!this.startMessage(timeoutMillis)) return null;
+
+        JsonElement element;
+        try {
+            element = ELEMENT_ADAPTER.read(this.reader);
+        } catch (SocketTimeoutException e) {
+            throw stalled(e);
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Remote sent malformed JSON", e);
+        }
+        return element.getAsJsonObject();
+    }
+
+    /**
+     * Wait for the next message to start.
+     * @return false if none started within the timeout
+     */
+    private boolean startMessage(int timeoutMillis) throws IOException {
+        this.source.setTimeout(timeoutMillis);
+
+        // peeking consumes nothing, so a timeout here leaves the reader intact
+        JsonToken token;
+        try {
+            token = this.reader.peek();
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+        if (token == JsonToken.END_DOCUMENT) {
+            throw new EOFException("Remote closed the connection");
+        }
+        if (token != JsonToken.BEGIN_OBJECT) {
+            throw new IOException("Remote sent invalid message (not a JsonObject)");
+        }
+        return true;
+    }
+
+    private static IOException stalled(SocketTimeoutException e) {
+        // part of the message was consumed, the stream cannot be resynchronised
+        return new IOException("Remote stalled in the middle of a message", e);
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with buckets of bounded relative width, in
+ * the manner of HdrHistogram.
+ * <br /><br />
+ * Values are kept in microseconds. Below {@code 2 * SUB_BUCKETS} each
+ * microsecond has its own bucket; above that, every power of two is split
+ * into {@code SUB_BUCKETS} equal buckets, so a reported percentile is within
+ * about 6% of the true value whatever the magnitude. Recording is a few
+ * atomic adds and never allocates.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * A summary of a histogram, in milliseconds.
+     * @param count how many values were recorded
+     * @param meanMillis the mean, 0 if nothing was recorded
+     * @param p50Millis the median
+     * @param p90Millis the 90th percentile
+     * @param p99Millis the 99th percentile
+     * @param maxMillis the largest value recorded
+     */
+    public record Snapshot(long count, double meanMillis, double p50Millis, double p90Millis,
+                           double p99Millis, double maxMillis) {}
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // enough buckets for any positive long
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a duration.
+     * @param nanos the duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        this.counts.incrementAndGet(bucketOf(micros));
+        this.count.increment();
+        this.sum.add(micros);
+        this.max.accumulate(micros);
+    }
+
+    /**
+     * Add everything recorded in {@code other} to this histogram, such as to
+     * summarise many endpoints at once.
+     * @param other the histogram to add, which is left as it was
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) this.counts.addAndGet(i, n);
+        }
+        this.count.add(other.count.sum());
+        this.sum.add(other.sum.sum());
+        this.max.accumulate(other.max.get());
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * @param percentile the percentile, from 0 to 100
+     * @return the upper bound of the bucket holding that percentile, in milliseconds, 0 if nothing was recorded
+     */
+    public double percentileMillis(double percentile) {
+        long total = 0;
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = this.counts.get(i);
+            total += copy[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += copy[i];
+            if (seen >= rank) {
+                // never report more than was actually seen
+                return Math.min(upperBoundOf(i), this.max.get()) / 1_000d;
+            }
+        }
+        return this.max.get() / 1_000d;
+    }
+
+    public Snapshot snapshot() {
+        long n = this.count.sum();
+        return new Snapshot(
+                n,
+                n == 0 ? 0 : this.sum.sum() / (double) n / 1_000d,
+                this.percentileMillis(50),
+                this.percentileMillis(90),
+                this.percentileMillis(99),
+                this.max.get() / 1_000d
+        );
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+}
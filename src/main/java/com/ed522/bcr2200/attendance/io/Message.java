@@ -0,0 +1,105 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.util.Arrays;
+
+/**
+ * A message exchanged with the server, independent of how it is encoded.
+ * <br /><br />
+ * Messages are mutable so that the communicator can read every reply into
+ * the same instance, and reuse the same outgoing heartbeat. Fields a message
+ * does not carry are {@link #ABSENT} (or null).
+ */
+final class Message {
+
+    enum Type {
+        CONNECT("connect", 1),
+        CODE("code", 2),
+        CODES("codes", 3),
+        HEARTBEAT("heartbeat", 4),
+        HEARTBEAT_ERROR("heartbeat_error", 5),
+        ACKNOWLEDGE("acknowledge", 6);
+
+        private static final Type[] BY_BINARY_ID = new Type[7];
+        static {
+            for (Type type : values()) BY_BINARY_ID[type.binaryId] = type;
+        }
+
+        final String wireName;
+        final int binaryId;
+
+        Type(String wireName, int binaryId) {
+            this.wireName = wireName;
+            this.binaryId = binaryId;
+        }
+
+        /**
+         * @return the type with this JSON name, or null if there is none
+         */
+        static Type fromWireName(String name) {
+            if (name == null) return null;
+            for (Type type : values()) {
+                if (type.wireName.equals(name)) return type;
+            }
+            return null;
+        }
+
+        /**
+         * @return the type with this binary id, or null if there is none
+         */
+        static Type fromBinaryId(int id) {
+            return id > 0 && id < BY_BINARY_ID.length ? BY_BINARY_ID[id] : null;
+        }
+    }
+
+    static final long ABSENT = Long.MIN_VALUE;
+
+    Type type;
+    Type targeting;
+    long id = ABSENT;
+    long counter = ABSENT;
+    long validTo = ABSENT;
+    String stream;
+
+    // parallel arrays, grown as needed and never shrunk
+    long[] codes = new long[4];
+    long[] generationTimes = new long[4];
+    int codeCount;
+
+    /**
+     * Reset every field, keeping the code arrays.
+     * @return this message
+     */
+    Message clear() {
+        this.type = null;
+        this.targeting = null;
+        this.id = ABSENT;
+        this.counter = ABSENT;
+        this.validTo = ABSENT;
+        this.stream = null;
+        this.codeCount = 0;
+        return this;
+    }
+
+    void addCode(long value, long generationTime) {
+        if (this.codeCount == this.codes.length) {
+            this.codes = Arrays.copyOf(this.codes, this.codeCount * 2);
+            this.generationTimes = Arrays.copyOf(this.generationTimes, this.codeCount * 2);
+        }
+        this.codes[this.codeCount] = value;
+        this.generationTimes[this.codeCount] = generationTime;
+        this.codeCount++;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Message[type=").append(this.type);
+        if (this.targeting != null) builder.append(", targeting=").append(this.targeting);
+        if (this.id != ABSENT) builder.append(", id=").append(this.id);
+        if (this.counter != ABSENT) builder.append(", counter=").append(this.counter);
+        if (this.validTo != ABSENT) builder.append(", valid_to=").append(this.validTo);
+        if (this.stream != null) builder.append(", stream=").append(this.stream);
+        if (this.codeCount > 0) builder.append(", codes=").append(this.codeCount);
+        return builder.append(']').toString();
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes {@link Message}s in one of the wire encodings.
+ * <br /><br />
+ * Every connection starts as JSON ({@link JsonMessageStream}); the handshake
+ * may switch it to {@link BinaryMessageStream}.
+ */
+interface MessageStream {
+
+    /**
+     * Write a single message and flush it.
+     * @param message the message to write
+     * @throws IOException if the transport could not be written to
+     */
+    void write(Message message) throws IOException;
+
+    /**
+     * Read the next message.
+     * @param into the message to read into, cleared first
+     * @param timeoutMillis how long to wait for the start of a message, 0 to wait forever
+     * @return true if a message was read, false if none started within the timeout
+     * @throws IOException if the remote closed the connection, sent something
+     *                     malformed, or stalled part way through a message
+     */
+    boolean read(Message into, int timeoutMillis) throws IOException;
+
+    /**
+     * @return the most bytes one more code can add to a code message, to keep batches within a size
+     */
+    int maxEncodedCodeSize();
+
+}
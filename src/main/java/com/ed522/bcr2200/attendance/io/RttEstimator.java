@@ -0,0 +1,88 @@
+package com.ed522.bcr2200.attendance.io;
+
+/**
+ * Keeps a smoothed round trip time and its variation, the way TCP does
+ * (RFC 6298), and derives how long to wait for an acknowledgement.
+ * <br /><br />
+ * Only requests answered on their first attempt should be sampled, since a
+ * reply to a retried request cannot be matched to a particular attempt.
+ * Each timeout doubles the wait until the next sample, so a link that has
+ * suddenly slowed is given longer instead of being retried into the ground.
+ * <br /><br />
+ * Not thread safe, owned by the communicator.
+ */
+final class RttEstimator {
+
+    private static final int ALPHA_SHIFT = 3; // gain 1/8
+    private static final int BETA_SHIFT = 2; // gain 1/4
+    private static final int VARIANCE_MULTIPLE = 4;
+    private static final int MAX_BACKOFF_SHIFT = 5;
+
+    private final long initialTimeout;
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    // in microseconds, so the shifts keep some precision on fast links
+    private long smoothed = -1;
+    private long variation;
+    private int backoffShift = 0;
+
+    /**
+     * @param initialTimeout the timeout before the first sample, in milliseconds
+     * @param minTimeout the shortest timeout, in milliseconds
+     * @param maxTimeout the longest timeout, in milliseconds, including backoff
+     */
+    RttEstimator(long initialTimeout, long minTimeout, long maxTimeout) {
+        this.initialTimeout = initialTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Add a round trip measurement, and clear any backoff.
+     * @param rttNanos the measured round trip, in nanoseconds
+     */
+    void sample(long rttNanos) {
+        long rtt = Math.max(1, rttNanos / 1_000);
+        if (this.smoothed < 0) {
+            this.smoothed = rtt;
+            this.variation = rtt / 2;
+        } else {
+            this.variation += (Math.abs(this.smoothed - rtt) - this.variation) >> BETA_SHIFT;
+            this.smoothed += (rtt - this.smoothed) >> ALPHA_SHIFT;
+        }
+        this.backoffShift = 0;
+    }
+
+    /**
+     * Note that a request went unanswered, doubling the timeout.
+     */
+    void timedOut() {
+        this.backoffShift = Math.min(this.backoffShift + 1, MAX_BACKOFF_SHIFT);
+    }
+
+    /**
+     * @return how long to wait for an acknowledgement, in milliseconds
+     */
+    int timeout() {
+        long base = this.smoothed < 0
+                ? this.initialTimeout
+                : (this.smoothed + VARIANCE_MULTIPLE * this.variation + 999) / 1_000;
+        return (int) Math.min(Math.max(base, this.minTimeout) << this.backoffShift, this.maxTimeout);
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 before the first sample
+     */
+    double smoothedMillis() {
+        return this.smoothed < 0 ? -1 : this.smoothed / 1_000d;
+    }
+
+    /**
+     * @return the round trip variation in milliseconds, or -1 before the first sample
+     */
+    double variationMillis() {
+        return this.smoothed < 0 ? -1 : this.variation / 1_000d;
+    }
+
+}
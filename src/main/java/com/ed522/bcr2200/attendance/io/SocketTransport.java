@@ -0,0 +1,63 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Transport} over a blocking {@link Socket}.
+ * <br /><br />
+ * Read timeouts use the socket timeout, which is only changed when a read
+ * asks for a different value than the last one.
+ */
+final class SocketTransport implements Transport {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private int timeout;
+
+    SocketTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
+        this.timeout = socket.getSoTimeout();
+    }
+
+    @Override
+    public int read(ByteBuffer dst, int timeoutMillis) throws IOException {
+        if (timeoutMillis != this.timeout) {
+            this.socket.setSoTimeout(timeoutMillis);
+            this.timeout = timeoutMillis;
+        }
+        int read = this.in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        if (read > 0) dst.position(dst.position() + read);
+        return read;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        this.out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        this.out.flush();
+        src.position(src.limit());
+    }
+
+    @Override
+    public InetAddress getRemoteAddress() {
+        return this.socket.getInetAddress();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !this.socket.isClosed() && this.socket.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * A byte-level connection to the server.
+ * <br /><br />
+ * {@link SocketTransport} is the one used against a real server; tests read
+ * and write through their own. Everything above this interface is shared.
+ */
+interface Transport extends Closeable {
+
+    /**
+     * Read whatever is available into {@code dst}, waiting if nothing is.
+     * @param dst the buffer to read into, must have space remaining
+     * @param timeoutMillis how long to wait for data, 0 to wait forever
+     * @return the number of bytes read (at least 1), or -1 at end of stream
+     * @throws SocketTimeoutException if no data arrived within the timeout
+     * @throws IOException if the connection failed
+     */
+    int read(ByteBuffer dst, int timeoutMillis) throws IOException;
+
+    /**
+     * Write all remaining bytes of {@code src}.
+     * @param src the bytes to write
+     * @throws IOException if the connection failed
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Allocate a buffer suited to this transport's reads and writes.
+     * @param capacity the capacity in bytes
+     * @return a new buffer
+     */
+    default ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocate(capacity);
+    }
+
+    InetAddress getRemoteAddress();
+
+    boolean isOpen();
+
+}
@@ -0,0 +1,59 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Listens for the server connecting back to us after discovery, and wraps
+ * each connection in a {@link Transport}.
+ */
+final class TransportListener implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private int timeout = 0;
+
+    TransportListener(int port) throws IOException {
+        this.serverSocket = new ServerSocket();
+        try {
+            this.serverSocket.setReuseAddress(true);
+            this.serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            this.serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Accept the next connection.
+     * @param timeoutMillis how long to wait, 0 to wait forever
+     * @return the connected transport, or null if nothing connected in time
+     * @throws IOException if accepting failed, or the listener was closed
+     */
+    Transport accept(int timeoutMillis) throws IOException {
+        if (timeoutMillis != this.timeout) {
+            this.serverSocket.setSoTimeout(timeoutMillis);
+            this.timeout = timeoutMillis;
+        }
+        Socket socket;
+        try {
+            socket = this.serverSocket.accept();
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        return new SocketTransport(socket);
+    }
+
+    int getLocalPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes UTF-8 from a {@link Transport} as a {@link Reader}.
+ * <br /><br />
+ * Both the byte and char buffers are allocated once. Reads block on the
+ * transport for at most {@link #setTimeout(int) the current timeout}.
+ */
+final class TransportReader extends Reader {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Transport transport;
+    private final ByteBuffer bytes;
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private int timeout;
+
+    TransportReader(Transport transport) {
+        this.transport = transport;
+        this.bytes = transport.allocate(BUFFER_SIZE);
+        // both buffers are kept ready for reading, start empty
+        this.bytes.flip();
+        this.chars.flip();
+    }
+
+    void setTimeout(int timeoutMillis) {
+        this.timeout = timeoutMillis;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!this.chars.hasRemaining() && !this.fill()) return -1;
+        int count = Math.min(len, this.chars.remaining());
+        this.chars.get(cbuf, off, count);
+        return count;
+    }
+
+    private boolean fill() throws IOException {
+        while (true) {
+            this.chars.clear();
+            this.decoder.decode(this.bytes, this.chars, false);
+            this.chars.flip();
+            if (this.chars.hasRemaining()) return true;
+
+            // nothing decodable left, keep any partial character and read more
+            this.bytes.compact();
+            int read;
+            try {
+                read = this.transport.read(this.bytes, this.timeout);
+            } finally {
+                this.bytes.flip();
+            }
+            if (read == -1) return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.transport.close();
+    }
+
+}
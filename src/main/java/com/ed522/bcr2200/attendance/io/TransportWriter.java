@@ -0,0 +1,109 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes UTF-8 to a {@link Transport} as a {@link Writer}.
+ * <br /><br />
+ * Characters are encoded straight into a buffer that is reused for every
+ * message and only written to the transport on {@link #flush()}, so a whole
+ * message goes out in one write. The buffer grows if a message does not fit,
+ * and is never shrunk.
+ */
+final class TransportWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 1024;
+    private static final byte REPLACEMENT = '?';
+
+    private final Transport transport;
+    private ByteBuffer bytes;
+    private char highSurrogate = 0;
+
+    TransportWriter(Transport transport) {
+        this.transport = transport;
+        this.bytes = transport.allocate(BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(int c) {
+        this.encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        for (int i = off; i < off + len; i++) this.encode(cbuf[i]);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        for (int i = off; i < off + len; i++) this.encode(str.charAt(i));
+    }
+
+    private void encode(char c) {
+        this.ensureRemaining(4);
+        if (this.highSurrogate != 0) {
+            char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                this.bytes.put((byte) (0xF0 | codePoint >> 18))
+                        .put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                        .put((byte) (0x80 | codePoint >> 6 & 0x3F))
+                        .put((byte) (0x80 | codePoint & 0x3F));
+                return;
+            }
+            this.bytes.put(REPLACEMENT);
+            this.ensureRemaining(4);
+        }
+
+        if (c < 0x80) {
+            this.bytes.put((byte) c);
+        } else if (c < 0x800) {
+            this.bytes.put((byte) (0xC0 | c >> 6))
+                    .put((byte) (0x80 | c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            this.highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            this.bytes.put(REPLACEMENT);
+        } else {
+            this.bytes.put((byte) (0xE0 | c >> 12))
+                    .put((byte) (0x80 | c >> 6 & 0x3F))
+                    .put((byte) (0x80 | c & 0x3F));
+        }
+    }
+
+    private void ensureRemaining(int count) {
+        if (this.bytes.remaining() >= count) return;
+        ByteBuffer larger = this.transport.allocate(this.bytes.capacity() * 2);
+        this.bytes.flip();
+        larger.put(this.bytes);
+        this.bytes = larger;
+    }
+
+    /**
+     * Write everything encoded so far to the transport.
+     * @throws IOException if the transport could not be written to
+     */
+    @Override
+    public void flush() throws IOException {
+        if (this.highSurrogate != 0) {
+            this.highSurrogate = 0;
+            this.ensureRemaining(1);
+            this.bytes.put(REPLACEMENT);
+        }
+        this.bytes.flip();
+        try {
+            this.transport.write(this.bytes);
+        } finally {
+            this.bytes.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.transport.close();
+    }
+
+}
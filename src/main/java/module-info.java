@@ -1,10 +1,13 @@
 module com.ed522.bcr2200.attendance {
     requires javafx.controls;
     requires javafx.fxml;
-    requires java.sql;
     requires com.google.gson;
+    requires java.management;
+    requires java.logging;
 
 
     opens com.ed522.bcr2200.attendance to javafx.fxml;
     exports com.ed522.bcr2200.attendance;
+    // the metrics MXBean interface must be visible to JMX
+    exports com.ed522.bcr2200.attendance.io to java.management;
 }
\ No newline at end of file
@@ -0,0 +1,31 @@
+package com.ed522.bcr2200.attendance;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientOptionsTest {
+
+    @Test
+    void parsesTheFirstArgument() {
+        // the launcher passes only the arguments, never the program name
+        assertTrue(ClientOptions.parse(new String[] {"--headless"}).isHeadless());
+        assertArrayEquals(new String[] {"a", "b"}, ClientOptions.parse(new String[] {"--hosts", "a,b"}).getAllowedHosts());
+    }
+
+    @Test
+    void parsesArgumentsInAnyOrder() {
+        ClientOptions options = ClientOptions.parse(new String[] {"--hosts", "a", "--headless", "--windowed"});
+        assertArrayEquals(new String[] {"a"}, options.getAllowedHosts());
+        assertFalse(options.isHeadless());
+    }
+
+    @Test
+    void rejectsNullArguments() {
+        assertThrows(IllegalArgumentException.class, () -> ClientOptions.parse(new String[] {null}));
+    }
+
+}
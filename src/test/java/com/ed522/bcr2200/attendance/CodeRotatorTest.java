@@ -0,0 +1,153 @@
+package com.ed522.bcr2200.attendance;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint;
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.VerificationCode;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CodeRotatorTest {
+
+    private static final long VALIDITY = 30_000; // ms
+
+    /**
+     * Codes registered by the rotator, acknowledged only when a test says so.
+     */
+    private record Request(List<VerificationCode> codes, List<CompletableFuture<Instant>> results) {
+
+        long[] values() {
+            return this.codes.stream().mapToLong(VerificationCode::value).toArray();
+        }
+
+        Instant generation() {
+            return this.codes.getFirst().time();
+        }
+
+        void acknowledge(Instant expiry) {
+            for (CompletableFuture<Instant> result : this.results) result.complete(expiry);
+        }
+
+    }
+
+    private final List<Request> requests = new ArrayList<>();
+    private final List<Long> wakeUps = new ArrayList<>();
+    private final long now = System.currentTimeMillis();
+
+    private CodeRotator rotator(int poolSize) {
+        CodeRotator rotator = new CodeRotator(new AttendanceEndpoint().getDefaultStream(), 3, poolSize, codes -> {
+            List<CompletableFuture<Instant>> results = new ArrayList<>();
+            for (int i = 0; i < codes.size(); i++) results.add(new CompletableFuture<>());
+            this.requests.add(new Request(List.copyOf(codes), results));
+            return results;
+        });
+        rotator.setOnWakeUp(this.wakeUps::add);
+        return rotator;
+    }
+
+    private Request request(int index) {
+        assertEquals(index + 1, this.requests.size(), "requests made");
+        return this.requests.get(index);
+    }
+
+    @Test
+    void poolIsFilledAheadOfTheCurrentCodes() {
+        CodeRotator rotator = this.rotator(2);
+        rotator.tick(this.now);
+        assertNull(rotator.getCurrent());
+
+        Instant expiry = Instant.ofEpochMilli(this.now + VALIDITY);
+        request(0).acknowledge(expiry);
+        assertArrayEquals(this.requests.get(0).values(), rotator.getCurrent().codes());
+        assertEquals(expiry, rotator.getCurrent().expiry());
+
+        // each prepared rotation is valid from the moment the one before it expires
+        assertEquals(expiry, request(1).generation());
+        request(1).acknowledge(expiry.plusMillis(VALIDITY));
+        assertEquals(expiry.plusMillis(VALIDITY), request(2).generation());
+        request(2).acknowledge(expiry.plusMillis(2 * VALIDITY));
+
+        // the pool is full, and the current codes still good
+        rotator.tick(this.now + 1_000);
+        assertEquals(3, this.requests.size());
+
+        // rotates with no round trip, and tops the pool up behind
+        rotator.tick(expiry.toEpochMilli());
+        assertArrayEquals(this.requests.get(1).values(), rotator.getCurrent().codes());
+        assertEquals(expiry.plusMillis(2 * VALIDITY), request(3).generation());
+    }
+
+    @Test
+    void stalePreparedCodesAreSkipped() {
+        CodeRotator rotator = this.rotator(2);
+        rotator.tick(this.now);
+        Instant expiry = Instant.ofEpochMilli(this.now + VALIDITY);
+        request(0).acknowledge(expiry);
+        request(1).acknowledge(expiry.plusMillis(VALIDITY));
+        request(2).acknowledge(expiry.plusMillis(2 * VALIDITY));
+
+        // back after the first prepared rotation ran out too
+        rotator.tick(expiry.plusMillis(VALIDITY).toEpochMilli());
+        assertArrayEquals(this.requests.get(2).values(), rotator.getCurrent().codes());
+    }
+
+    @Test
+    void prefetchWaitsForItsPhaseOfTheWindow() {
+        CodeRotator rotator = this.rotator(2);
+        rotator.setPrefetch(10_000, 0);
+        rotator.tick(this.now);
+        Instant expiry = Instant.ofEpochMilli(this.now + VALIDITY);
+        request(0).acknowledge(expiry);
+        // not registered yet, but the owner is asked to tick when the window opens, as well as straight away
+        assertEquals(1, this.requests.size());
+        assertEquals(expiry.toEpochMilli() - 10_000, (long) this.wakeUps.getFirst());
+
+        // at the end of the window, with room left for the round trip
+        rotator.setPrefetch(10_000, 1);
+        rotator.tick(this.now);
+        assertEquals(expiry.toEpochMilli() - 2_000, (long) this.wakeUps.getLast());
+        assertEquals(1, this.requests.size());
+    }
+
+    @Test
+    void prefetchRegistersOnceInsideTheWindow() {
+        CodeRotator rotator = this.rotator(2);
+        rotator.setPrefetch(VALIDITY, 0);
+        rotator.tick(this.now);
+        request(0).acknowledge(Instant.ofEpochMilli(this.now + VALIDITY));
+        assertEquals(Instant.ofEpochMilli(this.now + VALIDITY), request(1).generation());
+    }
+
+    @Test
+    void invalidateDropsRepliesToEarlierRequests() {
+        CodeRotator rotator = this.rotator(2);
+        rotator.tick(this.now);
+        rotator.invalidate();
+        // still waiting on the first
+        rotator.tick(this.now);
+        assertEquals(1, this.requests.size());
+
+        request(0).acknowledge(Instant.ofEpochMilli(this.now + VALIDITY));
+        assertNull(rotator.getCurrent());
+        // the owner is asked to tick again, and fetches fresh codes
+        assertEquals(1, this.wakeUps.size());
+        rotator.tick(this.now);
+        request(1).acknowledge(Instant.ofEpochMilli(this.now + VALIDITY));
+        assertArrayEquals(this.requests.get(1).values(), rotator.getCurrent().codes());
+
+        // a prepared rotation arriving after invalidate is not pooled either
+        Request prepared = request(2);
+        rotator.invalidate();
+        prepared.acknowledge(Instant.ofEpochMilli(this.now + 2 * VALIDITY));
+        rotator.tick(this.now);
+        assertNull(rotator.getCurrent());
+        assertEquals(Instant.ofEpochMilli(this.now), request(3).generation());
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.ed522.bcr2200.attendance;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TaskSchedulerTest {
+
+    private static final long HOUR = 3_600_000; // ms
+
+    // stepped by the tests, as NTP or an RTC fix would step the wall clock
+    private final AtomicLong wallClockOffset = new AtomicLong();
+    private final TaskScheduler scheduler = new TaskScheduler("Test", this::now);
+
+    @AfterEach
+    void shutDown() {
+        this.scheduler.shutdown();
+    }
+
+    private long now() {
+        return System.currentTimeMillis() + this.wallClockOffset.get();
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(2, TimeUnit.SECONDS), "timed out");
+    }
+
+    @Test
+    void runsTasksInDeadlineOrder() throws InterruptedException {
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        long now = this.now();
+        for (String name : new String[] {"third", "first", "second"}) {
+            long at = now + switch (name) {
+                case "first" -> 20;
+                case "second" -> 60;
+                default -> 100;
+            };
+            this.scheduler.schedule(t -> {
+                order.add(name);
+                done.countDown();
+                return TaskScheduler.NEVER;
+            }, at);
+        }
+        await(done);
+        assertEquals(List.of("first", "second", "third"), order);
+    }
+
+    @Test
+    void taskReturningNeverWaitsToBeWoken() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(2);
+        TaskScheduler.Handle handle = this.scheduler.schedule(t -> {
+            runs.incrementAndGet();
+            first.countDown();
+            second.countDown();
+            return TaskScheduler.NEVER;
+        }, this.now());
+        await(first);
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+        handle.wakeNow();
+        await(second);
+    }
+
+    @Test
+    void wakingOnlyPullsARunEarlier() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        TaskScheduler.Handle handle = this.scheduler.schedule(t -> {
+            ran.countDown();
+            return TaskScheduler.NEVER;
+        }, this.now() + HOUR);
+        handle.wakeAt(this.now() + 2 * HOUR);
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+        handle.wakeAt(this.now() + 20);
+        await(ran);
+    }
+
+    @Test
+    void cancelledTaskNeverRunsAgain() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch first = new CountDownLatch(1);
+        TaskScheduler.Handle handle = this.scheduler.schedule(t -> {
+            runs.incrementAndGet();
+            first.countDown();
+            return t + 10;
+        }, this.now());
+        await(first);
+        handle.cancel();
+        int cancelledAt = runs.get();
+        handle.wakeNow();
+        Thread.sleep(150);
+        // at most a run that was already under way
+        assertTrue(runs.get() <= cancelledAt + 1, runs.get() + " runs after cancelling at " + cancelledAt);
+    }
+
+    @Test
+    void failingTaskIsRetriedLater() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(2);
+        this.scheduler.schedule(t -> {
+            ran.countDown();
+            throw new IllegalStateException("failing on purpose");
+        }, this.now());
+        await(ran);
+    }
+
+    @Test
+    void wallClockSteppedBackDoesNotStallQueuedTasks() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        this.scheduler.schedule(t -> {
+            ran.countDown();
+            return TaskScheduler.NEVER;
+        }, this.now() + 100);
+        this.wallClockOffset.set(-HOUR);
+        await(ran);
+    }
+
+    @Test
+    void wallClockSteppedForwardDoesNotRushQueuedTasks() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        this.scheduler.schedule(t -> {
+            ran.countDown();
+            return TaskScheduler.NEVER;
+        }, this.now() + 300);
+        this.wallClockOffset.set(HOUR);
+        // woken for some other reason, the task is still not due
+        this.scheduler.schedule(t -> TaskScheduler.NEVER, this.now());
+        assertFalse(ran.await(150, TimeUnit.MILLISECONDS));
+        await(ran);
+    }
+
+    @Test
+    void tasksAreGivenTheWallClock() throws InterruptedException {
+        this.wallClockOffset.set(-HOUR);
+        AtomicLong seen = new AtomicLong();
+        CountDownLatch ran = new CountDownLatch(1);
+        this.scheduler.schedule(t -> {
+            seen.set(t);
+            ran.countDown();
+            return TaskScheduler.NEVER;
+        }, this.now());
+        await(ran);
+        assertTrue(Math.abs(seen.get() - this.now()) < 1_000, "task saw " + seen.get());
+    }
+
+}
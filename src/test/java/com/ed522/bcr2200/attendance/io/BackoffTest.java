@@ -0,0 +1,54 @@
+package com.ed522.bcr2200.attendance.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackoffTest {
+
+    private static final long BASE = 500; // ms
+    private static final long MAX = 120_000; // ms
+
+    private static void assertInWindow(long window, long delay) {
+        assertTrue(delay >= window / 2 && delay <= window, delay + "ms outside the window " + window + "ms");
+    }
+
+    @Test
+    void windowDoublesPerAttemptUpToTheCap() {
+        Backoff backoff = new Backoff(BASE, MAX);
+        for (int attempt = 0; attempt < 64; attempt++) {
+            assertInWindow(Math.min(MAX, BASE << Math.min(attempt, 30)), backoff.next());
+        }
+    }
+
+    @Test
+    void delaysAreSpreadAcrossTheUpperHalf() {
+        Set<Long> seen = new HashSet<>();
+        long shortest = Long.MAX_VALUE;
+        long longest = 0;
+        for (int i = 0; i < 1_000; i++) {
+            Backoff backoff = new Backoff(BASE, MAX);
+            for (int attempt = 0; attempt < 10; attempt++) backoff.next();
+            long delay = backoff.next();
+            assertInWindow(MAX, delay);
+            seen.add(delay);
+            shortest = Math.min(shortest, delay);
+            longest = Math.max(longest, delay);
+        }
+        assertTrue(seen.size() > 900, seen.size() + " distinct delays in 1000");
+        assertTrue(shortest < MAX * 6 / 10 && longest > MAX * 9 / 10, shortest + "ms to " + longest + "ms");
+    }
+
+    @Test
+    void resetStartsFromTheBaseAgain() {
+        Backoff backoff = new Backoff(BASE, MAX);
+        for (int attempt = 0; attempt < 10; attempt++) backoff.next();
+        backoff.reset();
+        assertInWindow(BASE, backoff.next());
+        assertInWindow(2 * BASE, backoff.next());
+    }
+
+}
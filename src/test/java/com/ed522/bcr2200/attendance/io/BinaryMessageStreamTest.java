@@ -0,0 +1,108 @@
+package com.ed522.bcr2200.attendance.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryMessageStreamTest {
+
+    private static final int VERSION = 1;
+
+    private static Message codes(int count) {
+        Message message = new Message();
+        message.type = Message.Type.CODES;
+        message.id = 9;
+        message.stream = "room";
+        for (int i = 0; i < count; i++) message.addCode(i, 1_790_000_000L + i);
+        return message;
+    }
+
+    private static byte[] written(Message... messages) throws IOException {
+        FakeTransport transport = new FakeTransport();
+        BinaryMessageStream stream = new BinaryMessageStream(transport, VERSION);
+        for (Message message : messages) stream.write(message);
+        return transport.takeWritten();
+    }
+
+    private static void assertCodes(int count, Message message) {
+        assertEquals(Message.Type.CODES, message.type);
+        assertEquals(9, message.id);
+        assertEquals("room", message.stream);
+        assertEquals(count, message.codeCount);
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, message.codes[i]);
+            assertEquals(1_790_000_000L + i, message.generationTimes[i]);
+        }
+    }
+
+    @Test
+    void readsFramesLargerThanItsFirstBuffer() throws IOException {
+        // about 48 KiB, where the buffers start at 4 KiB
+        byte[] bytes = written(codes(3_000), codes(2));
+        BinaryMessageStream stream = new BinaryMessageStream(new FakeTransport().feed(bytes), VERSION);
+        Message message = new Message();
+
+        assertTrue(stream.read(message, 1_000));
+        assertCodes(3_000, message);
+        assertTrue(stream.read(message, 1_000));
+        assertCodes(2, message);
+        assertFalse(stream.read(message, 1_000));
+    }
+
+    @Test
+    void readsTheLargestFrameItCanWrite() throws IOException {
+        // the largest batch whose frame length still fits the length field
+        int count = 0;
+        while (true) {
+            try {
+                written(codes(count + 1));
+            } catch (IOException e) {
+                break;
+            }
+            count++;
+        }
+        assertTrue(count > 4_000);
+
+        byte[] bytes = written(codes(count));
+        // within one code (16 bytes) of the largest length the field can say
+        assertTrue(bytes.length > 0xFFFF + 2 - 16, "frame of " + bytes.length + " bytes");
+        BinaryMessageStream stream = new BinaryMessageStream(new FakeTransport().feed(bytes, 1, 3, 5_000), VERSION);
+        Message message = new Message();
+        assertTrue(stream.read(message, 1_000));
+        assertCodes(count, message);
+    }
+
+    @Test
+    void readsLargeFramesSplitAcrossReads() throws IOException {
+        byte[] one = written(codes(1_000));
+        ByteArrayOutputStream both = new ByteArrayOutputStream();
+        both.writeBytes(one);
+        both.writeBytes(one);
+        byte[] bytes = both.toByteArray();
+        for (int cut : new int[] {1, 2, 3, 4_095, 4_096, 4_097, one.length - 1, one.length, one.length + 1}) {
+            BinaryMessageStream stream = new BinaryMessageStream(new FakeTransport().feed(bytes, cut), VERSION);
+            Message message = new Message();
+            assertTrue(stream.read(message, 1_000), "cut at " + cut);
+            assertCodes(1_000, message);
+            assertTrue(stream.read(message, 1_000), "cut at " + cut);
+            assertCodes(1_000, message);
+        }
+    }
+
+    @Test
+    void stallInsideALargeFrameFails() throws IOException {
+        byte[] bytes = written(codes(1_000));
+        // all but the last byte arrives, then nothing more
+        FakeTransport transport = new FakeTransport().feed(Arrays.copyOf(bytes, bytes.length - 1));
+        BinaryMessageStream stream = new BinaryMessageStream(transport, VERSION);
+        assertThrows(IOException.class, () -> stream.read(new Message(), 1_000));
+    }
+
+}
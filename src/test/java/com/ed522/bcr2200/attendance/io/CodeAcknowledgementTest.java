@@ -0,0 +1,158 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.VerificationCode;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CodeAcknowledgementTest {
+
+    private static final Instant GENERATION = Instant.ofEpochSecond(1_700_000_000L);
+
+    private static AttendanceEndpoint endpoint() {
+        AttendanceEndpoint endpoint = new AttendanceEndpoint();
+        endpoint.setHostCache(null);
+        endpoint.setBatchingEnabled(true);
+        return endpoint;
+    }
+
+    private static JsonObject acknowledge(String target, long id, long validTo) {
+        JsonObject ack = new JsonObject();
+        ack.addProperty("type", "acknowledge");
+        ack.addProperty("targeting", target);
+        if (id >= 0) ack.addProperty("id", id);
+        if (validTo >= 0) ack.addProperty("valid_to", validTo);
+        return ack;
+    }
+
+    /**
+     * @return a server that accepts the handshake in JSON, then sends {@code replies}, in one chunk each
+     */
+    private static FakeTransport server(JsonObject... replies) throws IOException {
+        FakeTransport server = new FakeTransport();
+        FakeTransport encoded = new FakeTransport();
+        JsonMessageStream json = new JsonMessageStream(encoded);
+        json.write(acknowledge("connect", -1, -1));
+        server.feed(encoded.takeWritten());
+        for (JsonObject reply : replies) {
+            json.write(reply);
+            server.feed(encoded.takeWritten());
+        }
+        return server;
+    }
+
+    /**
+     * Talk to the server until {@code until} is done, then stop as a shutdown would.
+     */
+    private static void communicateUntil(AttendanceEndpoint endpoint, CompletableFuture<?> until) throws Exception {
+        Thread communicator = Thread.ofPlatform().start(() -> {
+            try {
+                endpoint.communicate();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            until.get(5, TimeUnit.SECONDS);
+        } finally {
+            communicator.interrupt();
+            communicator.join(5_000);
+        }
+        assertFalse(communicator.isAlive());
+    }
+
+    @Test
+    void outOfOrderAcknowledgementsCompleteTheirOwnCodes() throws Exception {
+        AttendanceEndpoint endpoint = endpoint();
+        endpoint.connectTo(server(
+                // proves the server echoes ids, so both streams may be in flight together
+                acknowledge("code", 0, 1_700_000_030L),
+                // answered in the opposite order to the requests
+                acknowledge("code", 2, 1_700_000_090L),
+                acknowledge("codes", 1, 1_700_000_060L)
+        ));
+
+        CompletableFuture<Instant> first = endpoint.sendCodeAsync(new VerificationCode(1, GENERATION));
+        List<CompletableFuture<Instant>> room1 = endpoint.openStream("room-1").sendCodesAsync(List.of(
+                new VerificationCode(2, GENERATION), new VerificationCode(3, GENERATION)));
+        CompletableFuture<Instant> room2 = endpoint.openStream("room-2").sendCodeAsync(new VerificationCode(4, GENERATION));
+
+        communicateUntil(endpoint, CompletableFuture.allOf(first, room1.get(0), room1.get(1), room2));
+        assertEquals(Instant.ofEpochSecond(1_700_000_030L), first.get());
+        assertEquals(Instant.ofEpochSecond(1_700_000_060L), room1.get(0).get());
+        assertEquals(Instant.ofEpochSecond(1_700_000_060L), room1.get(1).get());
+        assertEquals(Instant.ofEpochSecond(1_700_000_090L), room2.get());
+        assertEquals(4, endpoint.getMetrics().codesAcknowledged.sum());
+        assertEquals(0, endpoint.getMetrics().retries.sum());
+    }
+
+    @Test
+    void staleAcknowledgementIsSkipped() throws Exception {
+        AttendanceEndpoint endpoint = endpoint();
+        endpoint.connectTo(server(
+                acknowledge("code", 0, 1_700_000_030L),
+                // for a request that was never made
+                acknowledge("code", 7, 1_700_000_999L),
+                acknowledge("code", 1, 1_700_000_060L)
+        ));
+
+        CompletableFuture<Instant> first = endpoint.sendCodeAsync(new VerificationCode(1, GENERATION));
+        communicateUntil(endpoint, first);
+        CompletableFuture<Instant> second = endpoint.sendCodeAsync(new VerificationCode(2, GENERATION));
+        communicateUntil(endpoint, second);
+        assertEquals(Instant.ofEpochSecond(1_700_000_060L), second.get());
+    }
+
+    @Test
+    void requeuedCodeFailsOnceItsBudgetIsSpent() throws Exception {
+        AttendanceEndpoint endpoint = endpoint();
+        CompletableFuture<Instant> result = endpoint.sendCodeAsync(new VerificationCode(1, GENERATION));
+
+        // every server takes the handshake, then hangs up before acknowledging
+        for (int connection = 1; connection <= AttendanceEndpoint.CODE_SEND_BUDGET; connection++) {
+            assertFalse(result.isDone(), "failed after " + (connection - 1) + " attempts");
+            endpoint.connectTo(server().endStream());
+            assertThrows(IOException.class, endpoint::communicate);
+        }
+
+        assertTrue(result.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, result::get);
+        assertTrue(e.getCause() instanceof IOException, e.getCause().toString());
+        assertEquals(1, endpoint.getMetrics().codesFailed.sum());
+        assertEquals(AttendanceEndpoint.CODE_SEND_BUDGET, endpoint.getMetrics().codesSent.sum());
+    }
+
+    @Test
+    void requeuedCodesKeepTheirOrder() throws Exception {
+        AttendanceEndpoint endpoint = endpoint();
+        // one code per message, so the order they go out in shows
+        endpoint.setBatchingEnabled(false);
+        CompletableFuture<Instant> first = endpoint.sendCodeAsync(new VerificationCode(1, GENERATION));
+        endpoint.connectTo(server().endStream());
+        assertThrows(IOException.class, endpoint::communicate);
+
+        // queued while disconnected, behind the code that was requeued
+        CompletableFuture<Instant> second = endpoint.sendCodeAsync(new VerificationCode(2, GENERATION));
+        FakeTransport server = server(acknowledge("code", 1, 1_700_000_030L));
+        endpoint.connectTo(server);
+        server.takeWritten();
+        communicateUntil(endpoint, first);
+
+        assertFalse(second.isDone());
+        String written = new String(server.takeWritten(), StandardCharsets.UTF_8);
+        assertTrue(written.startsWith("{\"type\":\"code\",\"id\":1,\"code\":1,"), written);
+    }
+
+}
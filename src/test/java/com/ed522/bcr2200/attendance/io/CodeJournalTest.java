@@ -0,0 +1,188 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.ed522.bcr2200.attendance.io.AttendanceEndpoint.VerificationCode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CodeJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private Path file() {
+        return this.directory.resolve("codes.journal");
+    }
+
+    private static List<VerificationCode> codes(int from, int count) {
+        List<VerificationCode> codes = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) codes.add(new VerificationCode(i, Instant.ofEpochSecond(1_790_000_000L + i)));
+        return codes;
+    }
+
+    /**
+     * @return the values of the codes a journal replays, oldest first
+     */
+    private static long[] values(CodeJournal journal) {
+        return journal.takeParked().stream().mapToLong(CodeJournal.Entry::value).toArray();
+    }
+
+    private static long[] range(int from, int count) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) values[i] = from + i;
+        return values;
+    }
+
+    /**
+     * Overwrite bytes of a closed journal, as a client killed part way through a write leaves them.
+     */
+    private void scribble(long at, byte... bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.file(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), at);
+        }
+    }
+
+    private int liveRegion() throws IOException {
+        try (FileChannel channel = FileChannel.open(this.file(), StandardOpenOption.READ)) {
+            ByteBuffer region = ByteBuffer.allocate(4);
+            channel.read(region, CodeJournal.REGION_OFFSET);
+            return region.flip().getInt();
+        }
+    }
+
+    @Test
+    void reloadsOutstandingCodes() throws IOException {
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            long[] sequences = journal.append("room", codes(0, 5));
+            journal.acknowledge(sequences[1], sequences[3]);
+        }
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertEquals(3, journal.size());
+            List<CodeJournal.Entry> entries = journal.takeParked();
+            assertEquals("room", entries.get(0).stream());
+            assertEquals(1_790_000_002L, entries.get(1).time());
+            assertTrue(Arrays.equals(new long[] {0, 2, 4}, entries.stream().mapToLong(CodeJournal.Entry::value).toArray()));
+        }
+    }
+
+    @Test
+    void reloadsAfterATornRecord() throws IOException {
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            journal.append(null, codes(0, 3));
+        }
+        // a fourth record with everything but its type, which is written last
+        long torn = CodeJournal.HEADER_SIZE + 3L * CodeJournal.CODE_SIZE;
+        byte[] record = new byte[CodeJournal.CODE_SIZE];
+        Arrays.fill(record, 1, record.length, (byte) 0x5A);
+        this.scribble(torn, record);
+
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertTrue(Arrays.equals(range(0, 3), values(journal)));
+            journal.append(null, codes(3, 1));
+        }
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertTrue(Arrays.equals(range(0, 4), values(journal)));
+        }
+    }
+
+    @Test
+    void reloadsAfterADamagedRecord() throws IOException {
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            journal.append(null, codes(0, 3));
+        }
+        // not a record type at all
+        this.scribble(CodeJournal.HEADER_SIZE + 3L * CodeJournal.CODE_SIZE, (byte) 7, (byte) 7);
+
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertTrue(Arrays.equals(range(0, 3), values(journal)));
+            journal.append(null, codes(3, 1));
+        }
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertTrue(Arrays.equals(range(0, 4), values(journal)));
+        }
+    }
+
+    @Test
+    void reloadsAfterCompaction() throws IOException {
+        int count = 3_000;
+        List<Long> kept = new ArrayList<>();
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            long[] sequences = journal.append(null, codes(0, count));
+            for (int i = 0; i < count; i++) {
+                if (i % 100 == 0) kept.add((long) i);
+                else journal.acknowledge(sequences[i]);
+            }
+        }
+        assertEquals(1, this.liveRegion(), "should have compacted");
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertTrue(Arrays.equals(kept.stream().mapToLong(Long::longValue).toArray(), values(journal)));
+        }
+    }
+
+    @Test
+    void unfinishedCompactionLeavesTheLiveRegion() throws IOException {
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            journal.append(null, codes(0, 10));
+        }
+        // a compaction killed part way through its region, before switching the header
+        byte[] partial = new byte[1_000];
+        Arrays.fill(partial, (byte) 0x5A);
+        partial[0] = 1;
+        this.scribble(CodeJournal.regionStart(1), partial);
+
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertTrue(Arrays.equals(range(0, 10), values(journal)));
+            // enough to compact into the scribbled region, which starts over from zeroes
+            long[] sequences = journal.append(null, codes(10, 3_000));
+            for (int i = 0; i < sequences.length - 5; i++) journal.acknowledge(sequences[i]);
+        }
+        assertEquals(1, this.liveRegion(), "should have compacted");
+        long[] expected = new long[15];
+        System.arraycopy(range(0, 10), 0, expected, 0, 10);
+        System.arraycopy(range(3_005, 5), 0, expected, 10, 5);
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertTrue(Arrays.equals(expected, values(journal)));
+        }
+    }
+
+    @Test
+    void fullJournalDropsTheOldestCodes() throws IOException {
+        int fits = CodeJournal.CAPACITY / CodeJournal.CODE_SIZE;
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            long[] sequences = journal.append(null, codes(0, fits + 500));
+            assertTrue(Arrays.stream(sequences).noneMatch(s -> s == CodeJournal.NOT_JOURNALED));
+            assertEquals(fits, journal.size());
+        }
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            long[] values = values(journal);
+            assertEquals(fits, values.length);
+            assertEquals(fits + 499L, values[values.length - 1]);
+            assertEquals(500L, values[0]);
+        }
+    }
+
+    @Test
+    void startsOverOnceEverythingIsAcknowledged() throws IOException {
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            journal.acknowledge(journal.append(null, codes(0, 100)));
+            assertEquals(0, journal.size());
+            journal.append(null, codes(100, 1));
+        }
+        try (CodeJournal journal = CodeJournal.open(this.file())) {
+            assertTrue(Arrays.equals(range(100, 1), values(journal)));
+        }
+    }
+
+}
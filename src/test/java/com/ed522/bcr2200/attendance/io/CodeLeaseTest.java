@@ -0,0 +1,85 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CodeLeaseTest {
+
+    private static final byte[] KEY = "12345678901234567890123456789012".getBytes(StandardCharsets.US_ASCII);
+    private static final String KEY_BASE64 = "MTIzNDU2Nzg5MDEyMzQ1Njc4OTAxMjM0NTY3ODkwMTI=";
+    private static final long PERIOD = 59_666_666;
+
+    private static CodeLease lease() {
+        return new CodeLease(KEY, 30, 1_800_000_000L);
+    }
+
+    // the server derives the same codes, so these were computed apart from this class, not by it
+
+    @Test
+    void derivesKnownCodes() {
+        assertArrayEquals(new long[] {995271, 697407, 532025}, lease().derive("room-1", PERIOD, 3, 1_000_000));
+    }
+
+    @Test
+    void derivesKnownCodesForTheDefaultStream() {
+        assertArrayEquals(new long[] {51542, 943303}, lease().derive(null, PERIOD, 2, 1_000_000));
+    }
+
+    @Test
+    void derivesKnownCodesForTheNextPeriod() {
+        assertArrayEquals(new long[] {870160}, lease().derive("room-1", PERIOD + 1, 1, 1_000_000));
+    }
+
+    @Test
+    void reducesTheSameTruncationByTheBound() {
+        assertArrayEquals(new long[] {271, 407, 25}, lease().derive("room-1", PERIOD, 3, 1_000));
+    }
+
+    @Test
+    void readsItsOwnJson() {
+        CodeLease lease = CodeLease.fromJson(lease().toJson());
+        assertEquals(KEY_BASE64, lease.toJson().get("key").getAsString());
+        assertArrayEquals(new long[] {995271}, lease.derive("room-1", PERIOD, 1, 1_000_000));
+        assertEquals(1_800_000_000L, lease.getValidUntil());
+    }
+
+    @Test
+    void periodsStartAtTheEpoch() {
+        CodeLease lease = lease();
+        assertEquals(PERIOD, lease.periodAt(PERIOD * 30_000 + 29_999));
+        assertEquals(PERIOD * 30, lease.start(PERIOD).getEpochSecond());
+        assertEquals(PERIOD * 30 + 30, lease.expiry(PERIOD).getEpochSecond());
+        assertTrue(lease.covers(1_799_999_999_999L));
+        assertFalse(lease.covers(1_800_000_000_000L));
+    }
+
+    @Test
+    void invalidLeasesNeverQuoteTheKey() {
+        JsonObject badPeriod = lease().toJson();
+        badPeriod.addProperty("period", "soon");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> CodeLease.fromJson(badPeriod));
+        assertTrue(e.getMessage().contains("period"), e.getMessage());
+        assertFalse(e.getMessage().contains(KEY_BASE64), e.getMessage());
+
+        JsonObject badKey = lease().toJson();
+        badKey.addProperty("key", KEY_BASE64 + "!");
+        e = assertThrows(IllegalArgumentException.class, () -> CodeLease.fromJson(badKey));
+        assertTrue(e.getMessage().contains("key"), e.getMessage());
+        assertFalse(e.getMessage().contains(KEY_BASE64), e.getMessage());
+        assertEquals(null, e.getCause());
+
+        JsonObject missing = lease().toJson();
+        missing.remove("valid_until");
+        e = assertThrows(IllegalArgumentException.class, () -> CodeLease.fromJson(missing));
+        assertTrue(e.getMessage().contains("valid_until"), e.getMessage());
+    }
+
+}
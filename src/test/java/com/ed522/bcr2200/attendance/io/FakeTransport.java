@@ -0,0 +1,102 @@
+package com.ed522.bcr2200.attendance.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A {@link Transport} that reads from scripted chunks and keeps what is
+ * written.
+ * <br /><br />
+ * Each read returns bytes from one chunk at most, as a socket returns one
+ * segment, so a test decides exactly where the reader sees frames split or
+ * coalesced. Once the chunks run out, reads time out, or end the stream if
+ * it was {@link #endStream() ended}.
+ */
+final class FakeTransport implements Transport {
+
+    private final Deque<ByteBuffer> chunks = new ArrayDeque<>();
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private boolean ended = false;
+    private boolean open = true;
+
+    /**
+     * Queue bytes to be read, as one chunk.
+     */
+    FakeTransport feed(byte[] bytes) {
+        this.chunks.add(ByteBuffer.wrap(bytes.clone()));
+        return this;
+    }
+
+    /**
+     * Queue bytes to be read, as one chunk for each piece between the given offsets.
+     * @param cuts where to split {@code bytes}, in increasing order
+     */
+    FakeTransport feed(byte[] bytes, int... cuts) {
+        int start = 0;
+        for (int cut : cuts) {
+            this.feed(Arrays.copyOfRange(bytes, start, cut));
+            start = cut;
+        }
+        return this.feed(Arrays.copyOfRange(bytes, start, bytes.length));
+    }
+
+    /**
+     * Make reads past the last chunk end the stream, rather than time out.
+     */
+    FakeTransport endStream() {
+        this.ended = true;
+        return this;
+    }
+
+    /**
+     * @return everything written so far, which is then forgotten
+     */
+    byte[] takeWritten() {
+        byte[] bytes = this.written.toByteArray();
+        this.written.reset();
+        return bytes;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, int timeoutMillis) throws IOException {
+        ByteBuffer chunk;
+        while ((chunk = this.chunks.peek()) != null && !chunk.hasRemaining()) this.chunks.poll();
+        if (chunk == null) {
+            if (this.ended) return -1;
+            throw new SocketTimeoutException("No more chunks");
+        }
+        int count = Math.min(dst.remaining(), chunk.remaining());
+        dst.put(chunk.slice(chunk.position(), count));
+        chunk.position(chunk.position() + count);
+        return count;
+    }
+
+    @Override
+    public void write(ByteBuffer src) {
+        byte[] bytes = new byte[src.remaining()];
+        src.get(bytes);
+        this.written.writeBytes(bytes);
+    }
+
+    @Override
+    public InetAddress getRemoteAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() {
+        this.open = false;
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.ed522.bcr2200.attendance.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonMessageStreamTest {
+
+    /**
+     * @return three messages as the client writes them, one after another
+     */
+    private static byte[] threeMessages() throws IOException {
+        FakeTransport transport = new FakeTransport();
+        JsonMessageStream stream = new JsonMessageStream(transport);
+        Message message = new Message();
+
+        message.clear().type = Message.Type.HEARTBEAT;
+        message.counter = 7;
+        stream.write(message);
+
+        message.clear().type = Message.Type.CODES;
+        message.id = 42;
+        // not ASCII, so a split can fall inside a character
+        message.stream = "salle-é";
+        message.addCode(123456, 1_790_000_000);
+        message.addCode(654321, 1_790_000_000);
+        stream.write(message);
+
+        message.clear().type = Message.Type.ACKNOWLEDGE;
+        message.targeting = Message.Type.CODES;
+        message.id = 42;
+        message.validTo = 1_790_000_030;
+        stream.write(message);
+
+        return transport.takeWritten();
+    }
+
+    private static void assertThreeMessages(JsonMessageStream stream) throws IOException {
+        Message message = new Message();
+
+        assertTrue(stream.read(message, 1_000));
+        assertEquals(Message.Type.HEARTBEAT, message.type);
+        assertEquals(7, message.counter);
+
+        assertTrue(stream.read(message, 1_000));
+        assertEquals(Message.Type.CODES, message.type);
+        assertEquals(42, message.id);
+        assertEquals("salle-é", message.stream);
+        assertEquals(2, message.codeCount);
+        assertEquals(123456, message.codes[0]);
+        assertEquals(654321, message.codes[1]);
+        assertEquals(1_790_000_000, message.generationTimes[1]);
+
+        assertTrue(stream.read(message, 1_000));
+        assertEquals(Message.Type.ACKNOWLEDGE, message.type);
+        assertEquals(Message.Type.CODES, message.targeting);
+        assertEquals(1_790_000_030, message.validTo);
+
+        // nothing more arrived
+        assertFalse(stream.read(message, 1_000));
+    }
+
+    @Test
+    void readsMessagesSplitAtEveryOffset() throws IOException {
+        byte[] bytes = threeMessages();
+        for (int cut = 1; cut < bytes.length; cut++) {
+            FakeTransport transport = new FakeTransport().feed(bytes, cut);
+            assertThreeMessages(new JsonMessageStream(transport));
+        }
+    }
+
+    @Test
+    void readsMessagesArrivingOneByteAtATime() throws IOException {
+        byte[] bytes = threeMessages();
+        int[] cuts = new int[bytes.length - 1];
+        for (int i = 0; i < cuts.length; i++) cuts[i] = i + 1;
+        assertThreeMessages(new JsonMessageStream(new FakeTransport().feed(bytes, cuts)));
+    }
+
+    @Test
+    void readsSeveralMessagesCoalescedIntoOneRead() throws IOException {
+        assertThreeMessages(new JsonMessageStream(new FakeTransport().feed(threeMessages())));
+    }
+
+    @Test
+    void readsManyMessagesCoalescedPastTheReadBuffer() throws IOException {
+        byte[] bytes = threeMessages();
+        ByteArrayOutputStream many = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) many.writeBytes(bytes);
+        JsonMessageStream stream = new JsonMessageStream(new FakeTransport().feed(many.toByteArray()));
+        Message message = new Message();
+        for (int i = 0; i < 300; i++) {
+            assertTrue(stream.read(message, 1_000), "message " + i);
+        }
+        assertFalse(stream.read(message, 1_000));
+    }
+
+    @Test
+    void timeoutBetweenMessagesLeavesTheStreamIntact() throws IOException {
+        byte[] bytes = threeMessages();
+        FakeTransport transport = new FakeTransport();
+        JsonMessageStream stream = new JsonMessageStream(transport);
+        Message message = new Message();
+
+        assertFalse(stream.read(message, 1_000));
+        transport.feed(bytes);
+        assertThreeMessages(stream);
+    }
+
+    @Test
+    void stallInsideAMessageFails() {
+        byte[] bytes = "{\"type\":\"heartbeat\",\"cou".getBytes(StandardCharsets.UTF_8);
+        JsonMessageStream stream = new JsonMessageStream(new FakeTransport().feed(bytes));
+        assertThrows(IOException.class, () -> stream.read(new Message(), 1_000));
+    }
+
+    @Test
+    void endOfStreamFails() {
+        JsonMessageStream stream = new JsonMessageStream(new FakeTransport().endStream());
+        assertThrows(EOFException.class, () -> stream.read(new Message(), 1_000));
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.ed522.bcr2200.attendance.io;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReconnectBackoffTest {
+
+    private static final int ATTEMPTS = 12;
+
+    /**
+     * An endpoint whose every connection attempt fails, and which only notes
+     * the delays it is asked to wait.
+     */
+    private static final class FailingEndpoint extends AttendanceEndpoint {
+
+        private final boolean refused;
+        private final List<Long> delays = new ArrayList<>();
+        private int triesPerAttempt = -1;
+
+        /**
+         * @param refused whether a server answers and fails the handshake, rather than none answering
+         */
+        FailingEndpoint(boolean refused) {
+            this.refused = refused;
+            this.setHostCache(null);
+        }
+
+        @Override
+        void attemptConnection(int maxTries, String[] knownGoodHosts) throws IOException {
+            this.triesPerAttempt = maxTries;
+            if (!this.refused) throw new IOException("No host found");
+            // something on the port that answers, but not with an acknowledgement
+            JsonObject reply = new JsonObject();
+            reply.addProperty("type", "error");
+            FakeTransport written = new FakeTransport();
+            new JsonMessageStream(written).write(reply);
+            this.connectTo(new FakeTransport().feed(written.takeWritten()));
+        }
+
+        @Override
+        void pause(long delayMillis) throws InterruptedException {
+            this.delays.add(delayMillis);
+            if (this.delays.size() == ATTEMPTS) throw new InterruptedException();
+        }
+
+        List<Long> run() {
+            assertThrows(InterruptedException.class, () -> this.keepConnected(0, new String[] {"127.0.0.1"}));
+            return this.delays;
+        }
+
+    }
+
+    /**
+     * Check each delay is in the upper half of its window, which doubles per attempt up to the cap.
+     */
+    private static void assertBackoff(long base, List<Long> delays) {
+        assertEquals(ATTEMPTS, delays.size());
+        for (int i = 0; i < delays.size(); i++) {
+            long window = Math.min(AttendanceEndpoint.RECONNECT_MAX_DELAY, base << i);
+            long delay = delays.get(i);
+            assertTrue(delay >= window / 2 && delay <= window, "delay " + i + " was " + delay + "ms, window " + window + "ms");
+        }
+        // by the last attempt the window has reached the cap, at least half of which is always waited
+        assertTrue(delays.get(ATTEMPTS - 1) >= delays.get(0) * 10, delays.toString());
+    }
+
+    @Test
+    void unreachableServerBacksOff() {
+        FailingEndpoint endpoint = new FailingEndpoint(false);
+        assertBackoff(AttendanceEndpoint.RECONNECT_BASE_DELAY, endpoint.run());
+        // each attempt gives up, so the backoff sets the pace rather than endless probes
+        assertEquals(AttendanceEndpoint.ATTEMPT_TRIES, endpoint.triesPerAttempt);
+    }
+
+    @Test
+    void refusedHandshakeBacksOffFromALongerBase() {
+        FailingEndpoint endpoint = new FailingEndpoint(true);
+        assertBackoff(AttendanceEndpoint.HANDSHAKE_RETRY_BASE_DELAY, endpoint.run());
+        assertEquals(0, endpoint.getMetrics().connections.sum());
+    }
+
+    @Test
+    void delaysAreJittered() {
+        // two clients that failed together must not retry together
+        List<Long> one = new FailingEndpoint(false).run();
+        List<Long> other = new FailingEndpoint(false).run();
+        assertFalse(one.equals(other), one + " and " + other);
+        // at the cap, each delay is drawn from a 60s range
+        assertTrue(one.subList(9, ATTEMPTS).stream().distinct().count() > 1, one.toString());
+    }
+
+}
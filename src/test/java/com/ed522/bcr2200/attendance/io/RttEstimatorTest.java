@@ -0,0 +1,82 @@
+package com.ed522.bcr2200.attendance.io;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RttEstimatorTest {
+
+    private static final long MILLIS = 1_000_000; // ns
+
+    private static RttEstimator estimator() {
+        return new RttEstimator(1_000, 250, 8_000);
+    }
+
+    @Test
+    void waitsTheInitialTimeoutBeforeAnySample() {
+        RttEstimator rtt = estimator();
+        assertEquals(1_000, rtt.timeout());
+        assertEquals(-1.0, rtt.smoothedMillis());
+        assertEquals(-1.0, rtt.variationMillis());
+    }
+
+    @Test
+    void firstSampleSetsTheMeanAndHalfOfItAsVariation() {
+        RttEstimator rtt = estimator();
+        rtt.sample(100 * MILLIS);
+        assertEquals(100.0, rtt.smoothedMillis());
+        assertEquals(50.0, rtt.variationMillis());
+        // SRTT + 4 * RTTVAR
+        assertEquals(300, rtt.timeout());
+    }
+
+    @Test
+    void laterSamplesUpdateVariationFromTheOldMean() {
+        RttEstimator rtt = estimator();
+        rtt.sample(100 * MILLIS);
+        rtt.sample(200 * MILLIS);
+        // RTTVAR = 3/4 * 50 + 1/4 * |100 - 200|, then SRTT = 7/8 * 100 + 1/8 * 200
+        assertEquals(62.5, rtt.variationMillis());
+        assertEquals(112.5, rtt.smoothedMillis());
+        assertEquals(363, rtt.timeout());
+    }
+
+    @Test
+    void keepsSubMillisecondPrecision() {
+        RttEstimator rtt = estimator();
+        rtt.sample(1_500_000);
+        assertEquals(1.5, rtt.smoothedMillis());
+        assertEquals(0.75, rtt.variationMillis());
+    }
+
+    @Test
+    void timeoutIsClampedToTheMinimum() {
+        RttEstimator rtt = estimator();
+        rtt.sample(MILLIS);
+        assertEquals(250, rtt.timeout());
+    }
+
+    @Test
+    void timeoutsDoubleTheWaitUpToTheMaximum() {
+        RttEstimator rtt = estimator();
+        rtt.sample(100 * MILLIS);
+        rtt.timedOut();
+        assertEquals(600, rtt.timeout());
+        rtt.timedOut();
+        assertEquals(1_200, rtt.timeout());
+        for (int i = 0; i < 10; i++) rtt.timedOut();
+        assertEquals(8_000, rtt.timeout());
+    }
+
+    @Test
+    void sampleClearsTheBackoff() {
+        RttEstimator rtt = estimator();
+        rtt.sample(100 * MILLIS);
+        rtt.timedOut();
+        rtt.timedOut();
+        rtt.sample(100 * MILLIS);
+        // RTTVAR = 3/4 * 50 + 1/4 * 0
+        assertEquals(250, rtt.timeout());
+    }
+
+}